@@ -0,0 +1,61 @@
+package upem.jarret.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal benchmark harness standing in for JMH, which the build does not
+ * have. An operation is run for a warm-up round, then for timed rounds whose
+ * time and bytes allocated by the calling thread are reported per operation.
+ * The results of the operations are kept in a volatile field, so the JIT
+ * cannot drop them.
+ */
+final class Harness {
+	@FunctionalInterface
+	interface Operation {
+		Object run() throws Exception;
+	}
+
+	private static volatile Object sink;
+
+	private Harness() {
+	}
+
+	/**
+	 * Runs the operation and prints a line per timed round
+	 *
+	 * @param name
+	 * @param iterations number of operations of a round
+	 * @param rounds number of timed rounds, after the warm-up one
+	 * @param operation
+	 * @throws Exception if the operation fails
+	 */
+	static void run(String name, int iterations, int rounds, Operation operation) throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			sink = operation.run();
+		}
+		for (int round = 0; round < rounds; round++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				sink = operation.run();
+			}
+			long nanos = System.nanoTime() - start;
+			long allocated = bytes == -1 ? -1 : allocatedBytes() - bytes;
+			System.out.printf("%-32s %10.1f ns/op %10s B/op%n", name, (double) nanos / iterations,
+					allocated == -1 ? "?" : String.format("%.1f", (double) allocated / iterations));
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated by the calling thread, -1 if the JVM does
+	 * not tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,92 @@
+package upem.jarret.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import upem.jarret.job.Task;
+import util.ByteBufferOutputStream;
+import util.JsonCodec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Compares a JsonFactory created for each message, as the client and the
+ * server did before, with the factory shared through JsonCodec: the building
+ * of an answer by the client and the parsing of a task it receives.
+ *
+ * java upem.jarret.bench.JsonBenchmark [iterations [rounds]]
+ */
+public class JsonBenchmark {
+	private static final String TASK = "{\"JobId\":\"7\",\"WorkerVersion\":\"1\","
+			+ "\"WorkerURL\":\"http://localhost/worker.jar\",\"WorkerClassName\":\"upem.workerprime.WorkerPrime\","
+			+ "\"Task\":\"42\"}";
+	private static final String ANSWER = "{\"Value\":\"42 is not prime\"}";
+
+	private static void writeAnswer(JsonGenerator jg) throws IOException {
+		jg.writeStartObject();
+		jg.writeStringField("JobId", "7");
+		jg.writeStringField("WorkerVersion", "1");
+		jg.writeStringField("WorkerURL", "http://localhost/worker.jar");
+		jg.writeStringField("WorkerClassName", "upem.workerprime.WorkerPrime");
+		jg.writeStringField("Task", "42");
+		jg.writeStringField("ClientId", "bench");
+		jg.writeFieldName("Answer");
+		jg.writeRawValue(ANSWER);
+		jg.writeEndObject();
+		jg.close();
+	}
+
+	/**
+	 * Builds the answer with a new factory into a new stream
+	 */
+	private static Object answerNewFactory() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeAnswer(new JsonFactory().createGenerator(out));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Builds the answer with the shared factory into a reused buffer
+	 */
+	private static Object answerShared(ByteBufferOutputStream out) throws IOException {
+		out.reset();
+		writeAnswer(JsonCodec.createGenerator(out));
+		return out;
+	}
+
+	/**
+	 * Parses the task decoded to a String with a new factory
+	 */
+	private static Object taskNewFactory(byte[] bytes) throws IOException {
+		String json = new String(bytes, StandardCharsets.UTF_8);
+		try (JsonParser jp = new JsonFactory().createParser(json)) {
+			int fields = 0;
+			jp.nextToken();
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				jp.nextToken();
+				if (jp.getText() != null) {
+					fields++;
+				}
+			}
+			return fields;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		ByteBufferOutputStream out = new ByteBufferOutputStream(1024);
+		byte[] bytes = TASK.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer task = ByteBuffer.wrap(bytes);
+
+		Harness.run("answer new factory", iterations, rounds, JsonBenchmark::answerNewFactory);
+		Harness.run("answer shared factory", iterations, rounds, () -> answerShared(out));
+		Harness.run("task new factory", iterations, rounds, () -> taskNewFactory(bytes));
+		Harness.run("task shared factory", iterations, rounds, () -> Task.parseJSON(task));
+	}
+}
@@ -0,0 +1,89 @@
+package upem.jarret.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import upem.jarret.http.HTTPRequestParser;
+import util.BufferPool;
+
+/**
+ * Compares the incremental request parser with the decode-and-split parsing
+ * the server did before: the head decoded to a String, split into lines,
+ * then into tokens, and the content copied to a new array.
+ *
+ * java upem.jarret.bench.ParserBenchmark [iterations [rounds]]
+ */
+public class ParserBenchmark {
+	private static final byte[] GET_TASK = ("GET Task HTTP/1.1\r\nHost: localhost\r\nMax-Tasks: 16\r\n"
+			+ "Worker: upem.workerprime.WorkerPrime/1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] POST_ANSWER;
+
+	static {
+		byte[] json = ("{\"JobId\":\"7\",\"WorkerVersion\":\"1\",\"WorkerURL\":\"http://localhost/worker.jar\","
+				+ "\"WorkerClassName\":\"upem.workerprime.WorkerPrime\",\"Task\":\"42\",\"ClientId\":\"bench\","
+				+ "\"Answer\":{\"Value\":\"42 is not prime\"}}").getBytes(StandardCharsets.UTF_8);
+		byte[] head = ("POST Answer HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+				+ "Content-Length: " + (json.length + 12) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer bb = ByteBuffer.allocate(head.length + 12 + json.length);
+		bb.put(head).putLong(7).putInt(42).put(json);
+		POST_ANSWER = bb.array();
+	}
+
+	/**
+	 * The parsing of the server before the incremental parser
+	 */
+	private static Object splitParse(byte[] request) {
+		ByteBuffer in = ByteBuffer.wrap(request);
+		int endOfHead = indexOfEndOfHead(request);
+		in.limit(endOfHead);
+		String head = StandardCharsets.US_ASCII.decode(in).toString();
+		String[] lines = head.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		HashMap<String, String> fields = new HashMap<>();
+		for (int i = 1; i < lines.length; i++) {
+			String[] field = lines[i].split(": ");
+			fields.put(field[0], field[1]);
+		}
+		String contentLength = fields.get("Content-Length");
+		if (contentLength == null) {
+			return requestLine;
+		}
+		byte[] content = new byte[Integer.parseInt(contentLength)];
+		System.arraycopy(request, endOfHead + 4, content, 0, content.length);
+		return content;
+	}
+
+	private static int indexOfEndOfHead(byte[] request) {
+		for (int i = 3; i < request.length; i++) {
+			if (request[i] == '\n' && request[i - 1] == '\r' && request[i - 2] == '\n' && request[i - 3] == '\r') {
+				return i - 3;
+			}
+		}
+		throw new IllegalArgumentException("No end of head");
+	}
+
+	private static int parse(HTTPRequestParser parser, ByteBuffer in) {
+		in.clear();
+		int status = parser.parse(in);
+		if (status != HTTPRequestParser.COMPLETE) {
+			throw new IllegalStateException("Request not parsed");
+		}
+		parser.reset();
+		return status;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		HTTPRequestParser parser = new HTTPRequestParser(new BufferPool(1024, 64 * 1024, 1024 * 1024));
+		// the bytes are in a direct buffer, as in the reactors
+		ByteBuffer getTask = ByteBuffer.allocateDirect(GET_TASK.length).put(GET_TASK);
+		ByteBuffer postAnswer = ByteBuffer.allocateDirect(POST_ANSWER.length).put(POST_ANSWER);
+
+		Harness.run("split GET Task", iterations, rounds, () -> splitParse(GET_TASK));
+		Harness.run("parser GET Task", iterations, rounds, () -> parse(parser, getTask));
+		Harness.run("split POST Answer", iterations, rounds, () -> splitParse(POST_ANSWER));
+		Harness.run("parser POST Answer", iterations, rounds, () -> parse(parser, postAnswer));
+	}
+}
@@ -0,0 +1,50 @@
+package upem.jarret.client;
+
+import java.util.Arrays;
+
+/**
+ * Answers of a batch of tasks, with the time the worker took to compute each
+ * of them
+ */
+class Answers {
+	private final String[] answers;
+	private final long[] computeNanos;
+
+	/**
+	 * @param size number of tasks of the batch
+	 */
+	Answers(int size) {
+		answers = new String[size];
+		computeNanos = new long[size];
+		Arrays.fill(computeNanos, -1);
+	}
+
+	int size() {
+		return answers.length;
+	}
+
+	/**
+	 * Returns the answer of the i-th task of the batch
+	 *
+	 * @param i
+	 * @return the answer, null if its computation failed
+	 */
+	String get(int i) {
+		return answers[i];
+	}
+
+	/**
+	 * Returns the time the i-th task of the batch took to compute
+	 *
+	 * @param i
+	 * @return the time in nanoseconds, -1 if it is unknown
+	 */
+	long getComputeNanos(int i) {
+		return computeNanos[i];
+	}
+
+	void set(int i, String answer, long nanos) {
+		answers[i] = answer;
+		computeNanos[i] = nanos;
+	}
+}
@@ -1,56 +1,92 @@
 package upem.jarret.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.rmi.UnexpectedException;
-import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import upem.jarret.http.HTTPException;
 import upem.jarret.http.HTTPHeader;
 import upem.jarret.http.HTTPReader;
+import upem.jarret.http.HTTPRequestParser;
+import upem.jarret.job.AnswerValidator;
 import upem.jarret.job.Task;
-import upem.jarret.worker.Worker;
-import upem.jarret.worker.WorkerFactory;
+import upem.jarret.worker.WorkerJarCache;
+import util.ByteBufferOutputStream;
+import util.JsonCodec;
 import util.JsonTools;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 
 public class Client {
 	private static final Charset charsetASCII = Charset.forName("ASCII");
-	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final int MAX_ANSWER_SIZE = 4096;
+	// the jar cache is shared by the clients of the machine
+	private static final String WORKER_CACHE_DIRECTORY = System.getProperty("jarret.workerCache",
+			Paths.get(System.getProperty("java.io.tmpdir"), "jarret-workers").toString());
+	private static final long MAX_RETRY_SECONDS = 60;
+	private static final long WORKER_CACHE_BYTES = Long.getLong("jarret.workerCacheBytes", 256 * 1024 * 1024);
 
 	private final String id;
 	private final InetSocketAddress sa;
-	private final HashMap<String, Worker> workers = new HashMap<>();
+	private final TaskRunner runner;
+	// content of the POST requests, reused from one request to the next
+	private final ByteBufferOutputStream content = new ByteBufferOutputStream(MAX_ANSWER_SIZE);
+	// the validator of the server, so that it never refuses an answer posted
+	private final AnswerValidator validator = new AnswerValidator();
 	private SocketChannel sc;
+	private HTTPReader reader;
+	// value of the Worker header: the worker of the last task received, which is loaded
+	private String worker;
 
 	public Client(String id, String serverAddress, int port) throws IOException {
+		this(id, serverAddress, port, createRunner());
+	}
+
+	/**
+	 * Creates a client computing its tasks with a runner shared with the other
+	 * clients of the process
+	 */
+	Client(String id, String serverAddress, int port, TaskRunner runner) {
 		this.id = id;
+		this.runner = runner;
 		sa = new InetSocketAddress(serverAddress, port);
 	}
 
 	/**
-	 * Requests a task to do
+	 * Creates the runner of the tasks of the process, whose workers come from
+	 * the jar cache
+	 * 
+	 * @return
+	 * @throws IOException if the directory of the cache cannot be created
+	 */
+	private static TaskRunner createRunner() throws IOException {
+		WorkerJarCache jars = new WorkerJarCache(Paths.get(WORKER_CACHE_DIRECTORY), WORKER_CACHE_BYTES);
+		return new TaskRunner(new WorkerCache(jars));
+	}
+
+	/**
+	 * Requests a batch of tasks to do
 	 * 
+	 * @param maxTasks the number of tasks the server may give
 	 * @return task data
 	 * @throws HTTPException 
 	 * @throws IOException
 	 */
-	private Task requestTask() throws HTTPException, IOException {
+	private Task requestTask(int maxTasks) throws HTTPException, IOException {
 		// send the request
-		String request = "GET Task HTTP/1.1\r\n" + "Host: " + sa.getHostName() + "\r\n" + "\r\n";
+		String request = "GET Task HTTP/1.1\r\n" + "Host: " + sa.getHostName() + "\r\n" + "Max-Tasks: " + maxTasks
+				+ "\r\n" + (worker == null ? "" : "Worker: " + worker + "\r\n") + "\r\n";
 		sc.write(charsetASCII.encode(request));
 
 		// read the response
-		ByteBuffer bb = ByteBuffer.allocate(50);
-		HTTPReader reader = new HTTPReader(sc, bb);
 		HTTPHeader header = reader.readHeader();
 		
 		if (header.getCode() == 400) {
@@ -58,23 +94,72 @@ public class Client {
 		} else if (header.getCode() != 200) {
 			throw new UnexpectedException("Wrong http code: " + header.getCode());
 		}
-		ByteBuffer content = reader.readBytes(header.getContentLength());
+		ByteBuffer json = reader.readBytes(header.getContentLength());
+		closeIfAsked(header);
 
 		// parse json
-		content.flip();
-		return Task.parseJSON(charsetUTF8.decode(content).toString());
+		json.flip();
+		Task task = Task.parseJSON(json);
+		if (task.getComeBackInSeconds() < 0) {
+			// the server prefers the jobs of this worker for the next tasks
+			worker = HTTPRequestParser.workerHeaderValue(task.getWorkerClassName(), task.getWorkerVersion());
+		}
+		return task;
 	}
 
-	private void checkCode() throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(50);
-		HTTPReader reader = new HTTPReader(sc, bb);
+	/**
+	 * Reads the response to a post of answers. The server lists in the body
+	 * the tasks of a batch whose answers it rejected.
+	 * 
+	 * @return the header of the response
+	 * @throws IOException
+	 */
+	private HTTPHeader checkCode() throws IOException {
 		HTTPHeader header = reader.readHeader();
+		if (header.getContentLength() > 0) {
+			ByteBuffer body = reader.readBytes(header.getContentLength());
+			body.flip();
+			System.out.println("Answers rejected by the server: " + charsetASCII.decode(body));
+		}
+		closeIfAsked(header);
 		System.out.println("Answer from server : " + header.getCode());
-		
-		if(!(header.getCode() == 200)) {
-			throw new IllegalArgumentException();
-		} 
-    }
+		return header;
+	}
+
+	/**
+	 * Returns the delay the server asks for in its Retry-After field
+	 * 
+	 * @param header
+	 * @return the delay in seconds, 1 if the field is missing or invalid
+	 */
+	private static long retryAfterSeconds(HTTPHeader header) {
+		String retryAfter = header.getFields().get("Retry-After");
+		if (retryAfter != null) {
+			try {
+				return Math.max(Long.parseLong(retryAfter), 1);
+			} catch (NumberFormatException e) {
+				// the delay may be a date, the default is used
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Closes the connection if the server will not read the next request on it,
+	 * the next request reconnects
+	 * 
+	 * @param header
+	 */
+	private void closeIfAsked(HTTPHeader header) {
+		String connection = header.getFields().get("Connection");
+		if (connection != null && connection.equalsIgnoreCase("close")) {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				//
+			}
+		}
+	}
 
 	/**
 	 * Tests if there are errors in the answer
@@ -101,18 +186,18 @@ public class Client {
 	}
 
 	/**
-	 * Creates the string answer to POST
+	 * Writes the JSON answer to POST at the end of the request content
 	 * 
 	 * @param task the task the client work on
+	 * @param taskNumber the number of the task in the batch
 	 * @param answer the answer the worker calculates
+	 * @param computeNanos the time the worker took, -1 if it is unknown
 	 * @param error the error message is there is one
-	 * @return the request
 	 * @throws IOException if something went wrong
 	 */
-	private ByteBuffer createRequest(Task task, String answer, String error) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		JsonFactory jf = new JsonFactory();
-		JsonGenerator jg = jf.createGenerator(baos);
+	private void writeAnswer(Task task, int taskNumber, String answer, long computeNanos, String error)
+			throws IOException {
+		JsonGenerator jg = JsonCodec.createGenerator(content);
 
 		jg.writeStartObject();
 
@@ -120,8 +205,11 @@ public class Client {
 		jg.writeStringField("WorkerVersion", task.getWorkerVersion());
 		jg.writeStringField("WorkerURL", task.getWorkerURL());
 		jg.writeStringField("WorkerClassName", task.getWorkerClassName());
-		jg.writeStringField("Task", String.valueOf(task.getTask()));
+		jg.writeStringField("Task", String.valueOf(taskNumber));
 		jg.writeStringField("ClientId", id);
+		if (computeNanos >= 0) {
+			jg.writeNumberField("ComputeNanos", computeNanos);
+		}
 
 		if (error == null) {
 			jg.writeFieldName("Answer");
@@ -132,116 +220,210 @@ public class Client {
 
 		jg.writeEndObject();
 		jg.close();
-		
-		String json = baos.toString();
-		ByteBuffer jsonBuffer = charsetUTF8.encode(json);
-		
-		return jsonBuffer;
 	}
-	
+
+	/**
+	 * Writes the answer at the end of the request content, replaced by an
+	 * error if the server would refuse it, or by the error "Too Long" if it
+	 * takes more than maxSize bytes
+	 * 
+	 * @return the size of the JSON written
+	 * @throws IOException
+	 */
+	private int writeAnswer(Task task, int taskNumber, String answer, long computeNanos, int maxSize)
+			throws IOException {
+		int start = content.position();
+		writeAnswer(task, taskNumber, answer, computeNanos, checkError(answer));
+		ByteBuffer written = content.toByteBuffer();
+		if (!validator.validate(written.array(), written.arrayOffset() + start, content.position() - start,
+				task.getJobId(), taskNumber)) {
+			content.position(start);
+			writeAnswer(task, taskNumber, answer, computeNanos, "Answer is not valid JSON");
+		}
+		if (content.position() - start > maxSize) {
+			content.position(start);
+			writeAnswer(task, taskNumber, answer, computeNanos, "Too Long");
+		}
+		return content.position() - start;
+	}
+
+	/**
+	 * Sends the header and the request content
+	 * 
+	 * @param target
+	 * @throws IOException
+	 */
+	private void sendContent(String target) throws IOException {
+		ByteBuffer bb = content.toByteBuffer();
+		String header = "POST " + target + " HTTP/1.1\r\nHost: " + sa.getHostName()
+				+ "\r\nContent-Type: application/json\r\nContent-Length: " + bb.remaining() + "\r\n\r\n";
+		sc.write(charsetASCII.encode(header));
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+	}
+
 	/**
 	 * Sends the answer to the server
 	 * 
 	 * @param task
 	 * @param answer
+	 * @param computeNanos the time the worker took, -1 if it is unknown
 	 * @throws IOException
 	 */
-	private void sendAnswer(Task task, String answer) throws IOException {
-		ByteBuffer jsonBuffer = createRequest(task, answer, checkError(answer));
-		ByteBuffer content = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
-		
-		content.putLong(task.getJobId()).putInt(task.getTask());
-		content.flip();
-		if(content.remaining() + jsonBuffer.remaining() > 4096) {
-			jsonBuffer = createRequest(task, answer, "Too Long");
+	private void sendAnswer(Task task, String answer, long computeNanos) throws IOException {
+		content.reset();
+		content.writeLong(task.getJobId()).writeInt(task.getTask());
+		writeAnswer(task, task.getTask(), answer, computeNanos, MAX_ANSWER_SIZE - content.position());
+		sendContent("Answer");
+	}
+
+	/**
+	 * Sends the answers of a batch in a single request. The content is the
+	 * jobId followed for each answer by the task, the length of the answer and
+	 * the answer.
+	 * 
+	 * @param task the batch
+	 * @param answers the answers, in the order of the tasks
+	 * @throws IOException
+	 */
+	private void sendAnswers(Task task, Answers answers) throws IOException {
+		content.reset();
+		content.writeLong(task.getJobId());
+		for (int i = 0; i < answers.size(); i++) {
+			int taskNumber = task.getTask() + i;
+			content.writeInt(taskNumber);
+			int lengthIndex = content.position();
+			// the length is known once the answer is written
+			content.writeInt(0);
+			content.putInt(lengthIndex, writeAnswer(task, taskNumber, answers.get(i),
+					answers.getComputeNanos(i), MAX_ANSWER_SIZE));
 		}
-		
-		int contentLength = content.remaining() + jsonBuffer.remaining();
-		String header = "POST Answer HTTP/1.1\r\nHost: " + sa.getHostName() + "\r\nContent-Type: application/json\r\nContent-Length: " + contentLength + "\r\n\r\n";
-		
-		ByteBuffer bb = charsetASCII.encode(header);
-		
-		sc.write(bb);
-		sc.write(content);
-		sc.write(jsonBuffer);
+		sendContent("Answers");
 	}
 
 	/**
-	 * Interacts with the server
+	 * Requests tasks until the server gives some, coming back when it asks to
 	 * 
+	 * @return the batch of tasks to do
 	 * @throws IOException if something went wrong
-	 * @throws InterruptedException if the something is interrupted
-	 * @throws ClassNotFoundException if the class was not found
-	 * @throws IllegalAccessException if the class is not accessible
-	 * @throws InstantiationException if the instantiation went wrong
+	 * @throws InterruptedException if the thread is interrupted while waiting
 	 */
-	public void interact() throws IOException, InterruptedException, ClassNotFoundException, IllegalAccessException,
-	        InstantiationException {
-		Task task = new Task();
-		Worker worker = null;
-		do {
+	Task fetchTask() throws IOException, InterruptedException {
+		if (sc == null) {
 			connect();
-			while (true) {
-				try {
-					System.out.println("Requesting task");
-					task = requestTask();
-				} catch(IllegalArgumentException e) {
-					System.err.println(e.getMessage());
-					task.setComeBackInSeconds(300);
-				} catch(IOException e) {
-					connect();
-					continue;
-				}
-				try {
-					Thread.sleep(task.getComeBackInSeconds());
-				} catch (IllegalArgumentException e) {
-					break;
-				}
-			}
-			System.out.println("Task received: "+task.toJSON());
-			System.out.println("Retrieving worker");
-			if (worker == null ||  (task.getWorkerClassName() != worker.getClass().getName() && task.getWorkerVersion() != worker.getVersion())) {
-				worker = workers.get(task.getWorkerClassName());
-				if(worker == null || task.getWorkerVersion() != worker.getVersion()) {
-					worker = WorkerFactory.getWorker(task.getWorkerURL(), task.getWorkerClassName());
-					workers.put(task.getWorkerClassName(), worker);
-				}
-			}
-			String answer;
+		}
+		Task task = new Task();
+		while (true) {
 			try {
-				System.out.println("Starting computation");
-				answer = worker.compute(task.getTask());
-			} catch (Exception e) {
-				answer = null;
+				System.out.println("Requesting task");
+				task = requestTask(runner.getBatchSize());
+			} catch(IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				task.setComeBackInSeconds(300);
+			} catch(IOException e) {
+				reconnect();
+				continue;
 			}
+			if (task.getComeBackInSeconds() < 0) {
+				break;
+			}
+			TimeUnit.SECONDS.sleep(task.getComeBackInSeconds());
+		}
+		System.out.println("Task received: "+task.toJSON());
+		return task;
+	}
+
+	/**
+	 * Sends the answers of a batch until the server accepts them. When the
+	 * server is overloaded (503), the batch is sent again after the delay it
+	 * asks for, doubled after each refusal up to MAX_RETRY_SECONDS. Any other
+	 * code drops the batch, sending it again would not change the answer.
+	 * 
+	 * @param task the batch
+	 * @param answers the answers, in the order of the tasks
+	 * @throws IOException if something went wrong
+	 * @throws InterruptedException if the thread is interrupted, the answers
+	 *             are then dropped
+	 */
+	void upload(Task task, Answers answers) throws IOException, InterruptedException {
+		if (sc == null) {
+			connect();
+		}
+		int refusals = 0;
+		while(true) {
 			while(true) {
-				while(true) {
-					try{
-						System.out.println("Sending answer");
-						sendAnswer(task, answer);
-						break;
-					} catch(IOException e) {
-						connect();
-					}
-				}
 				try{
-					checkCode();
+					System.out.println("Sending answer");
+					if (answers.size() == 1) {
+						sendAnswer(task, answers.get(0), answers.getComputeNanos(0));
+					} else {
+						sendAnswers(task, answers);
+					}
 					break;
 				} catch(IOException e) {
-					//connect();
-				} catch(IllegalArgumentException e) {
-					System.out.println("Server does not reply with 200");
+					reconnect();
 				}
 			}
+			HTTPHeader header;
 			try{
-				sc.close();
-			} catch(Exception e) {
-				//
+				header = checkCode();
+			} catch(IOException e) {
+				reconnect();
+				continue;
+			}
+			if (header.getCode() == 200) {
+				break;
 			}
+			if (header.getCode() != 503) {
+				System.out.println("Server refused the answers with " + header.getCode() + ", they are dropped");
+				break;
+			}
+			long delay = Math.min(retryAfterSeconds(header) << Math.min(refusals++, 6), MAX_RETRY_SECONDS);
+			System.out.println("Server is overloaded, answers sent again in " + delay + "s");
+			TimeUnit.SECONDS.sleep(delay);
+		}
+	}
+
+	/**
+	 * Interacts with the server, computing each batch between its request and
+	 * the post of its answers
+	 * 
+	 * @throws IOException if something went wrong
+	 * @throws InterruptedException if the something is interrupted
+	 * @throws ReflectiveOperationException if the class was not found or its
+	 *             instantiation went wrong
+	 */
+	public void interact() throws IOException, InterruptedException, ReflectiveOperationException {
+		connect();
+		do {
+			Task task = fetchTask();
+			Answers answers = runner.compute(task);
+			upload(task, answers);
 			System.out.println("\n--------------------------------------\n");
 		} while (true);
 	}
 
+	/**
+	 * Opens a new connection after an I/O error. An interrupted thread does
+	 * not retry: its blocking I/O fails as soon as it starts.
+	 * 
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private void reconnect() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		connect();
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Opens the connection used for all the requests until it breaks, gives
+	 * up if the thread is interrupted
+	 */
 	private void connect() {
 		try{
 			sc.close();
@@ -252,7 +434,9 @@ public class Client {
 			System.out.println("Trying to connect with server...");
 			try {
 				sc = SocketChannel.open();
+				sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
 				sc.connect(sa);
+				reader = new HTTPReader(sc, ByteBuffer.allocate(1024));
 				return;
 			} catch(ConnectException e) {
 				//
@@ -261,28 +445,61 @@ public class Client {
 			}
 			try {
 				Thread.sleep(300);
-			} catch (IllegalArgumentException e) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 				return;
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
 		}
 	}
 
 	private static void usage() {
-		System.out.println("ClientJarRet clientId serverAddress serverPort");
+		System.out.println("ClientJarRet clientId serverAddress serverPort [threads [prefetch]]");
 	}
 	
-	public static void main(String[] args) throws JsonParseException, IOException, ClassNotFoundException,
-	        IllegalAccessException, InstantiationException, InterruptedException {
+	/**
+	 * Runs the tasks on threads, by default one per processor, with as many
+	 * batches fetched ahead. Without prefetch, each thread runs a client with
+	 * its own connection which waits for the network between its batches. The
+	 * jars of the workers are cached in the directory given by the property
+	 * jarret.workerCache, up to jarret.workerCacheBytes bytes.
+	 */
+	public static void main(String[] args) throws JsonParseException, IOException, InterruptedException {
 		
-		if (args.length != 3) {
+		if (args.length < 3 || args.length > 5) {
 			usage();
 			return;
 		}
 		
-		Client client = new Client(args[0], args[1], Integer.valueOf(args[2]));
-		client.interact();
+		int port = Integer.valueOf(args[2]);
+		int nbThreads = args.length >= 4 ? Integer.valueOf(args[3]) : Runtime.getRuntime().availableProcessors();
+		int prefetch = args.length == 5 ? Integer.valueOf(args[4]) : nbThreads;
+		if (nbThreads < 1 || prefetch < 0) {
+			usage();
+			return;
+		}
+		if (prefetch > 0) {
+			ClientPipeline pipeline = new ClientPipeline(args[0], args[1], port, createRunner(), nbThreads,
+					prefetch);
+			pipeline.start();
+			pipeline.join();
+			return;
+		}
+		TaskRunner runner = createRunner();
+		Thread[] threads = new Thread[nbThreads];
+		for (int i = 0; i < nbThreads; i++) {
+			Client client = new Client(args[0], args[1], port, runner);
+			threads[i] = new Thread(() -> {
+				try {
+					client.interact();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, "client-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package upem.jarret.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.job.Task;
+
+/**
+ * Runs the tasks of a client on compute threads which never wait for the
+ * network. Fetchers keep up to prefetch batches ahead of the compute threads
+ * and uploaders post the answers while the next batches are computed. There
+ * are prefetch fetchers and uploaders, each with its own connection, so that
+ * as many round trips are in flight in each direction.
+ *
+ * A step failing with an I/O or reflective error drops its batch, whose lease
+ * expires on the server, and the thread goes on after a pause. Any other
+ * error stops the whole pipeline, so no thread is left waiting on a queue
+ * nobody serves.
+ */
+class ClientPipeline {
+	private static final long FAILURE_PAUSE_MILLIS = 1000;
+
+	private static class Result {
+		private final Task task;
+		private final Answers answers;
+
+		Result(Task task, Answers answers) {
+			this.task = task;
+			this.answers = answers;
+		}
+	}
+
+	@FunctionalInterface
+	private interface Step {
+		void run() throws Exception;
+	}
+
+	private final String id;
+	private final String serverAddress;
+	private final int port;
+	private final int nbThreads;
+	private final int prefetch;
+	private final TaskRunner runner;
+	private final BlockingQueue<Task> tasks;
+	private final BlockingQueue<Result> results;
+	private final ArrayList<Thread> threads = new ArrayList<>();
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param id
+	 * @param serverAddress
+	 * @param port
+	 * @param runner
+	 * @param nbThreads number of compute threads
+	 * @param prefetch number of batches fetched ahead of the compute threads
+	 */
+	ClientPipeline(String id, String serverAddress, int port, TaskRunner runner, int nbThreads, int prefetch) {
+		if (nbThreads < 1 || prefetch < 1) {
+			throw new IllegalArgumentException("At least one thread and one batch ahead");
+		}
+		this.id = id;
+		this.serverAddress = serverAddress;
+		this.port = port;
+		this.runner = runner;
+		this.nbThreads = nbThreads;
+		this.prefetch = prefetch;
+		tasks = new ArrayBlockingQueue<>(prefetch);
+		results = new ArrayBlockingQueue<>(nbThreads);
+	}
+
+	/**
+	 * Starts the fetchers, the compute threads and the uploaders
+	 */
+	void start() {
+		for (int i = 0; i < prefetch; i++) {
+			Client client = new Client(id, serverAddress, port, runner);
+			start("fetcher-" + i, () -> tasks.put(client.fetchTask()));
+		}
+		for (int i = 0; i < nbThreads; i++) {
+			start("compute-" + i, () -> {
+				Task task = tasks.take();
+				results.put(new Result(task, runner.compute(task)));
+			});
+		}
+		for (int i = 0; i < prefetch; i++) {
+			Client client = new Client(id, serverAddress, port, runner);
+			start("uploader-" + i, () -> {
+				Result result = results.take();
+				client.upload(result.task, result.answers);
+			});
+		}
+	}
+
+	private void start(String name, Step step) {
+		Thread thread = new Thread(() -> {
+			while (!stopped) {
+				try {
+					step.run();
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException | ReflectiveOperationException e) {
+					if (stopped) {
+						return;
+					}
+					System.err.println(name + ": batch dropped: " + e);
+					try {
+						TimeUnit.MILLISECONDS.sleep(FAILURE_PAUSE_MILLIS);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				} catch (Throwable t) {
+					t.printStackTrace();
+					stop();
+					return;
+				}
+			}
+		}, name);
+		threads.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Stops all the threads, the batches they hold are dropped
+	 */
+	void stop() {
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Waits for all the threads to stop
+	 *
+	 * @throws InterruptedException
+	 */
+	void join() throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package upem.jarret.client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.job.Task;
+import upem.jarret.worker.Worker;
+
+/**
+ * Computes the batches of tasks of the threads of a client, each thread with
+ * its own workers, and sizes the batches to request from the time the last
+ * ones took.
+ */
+class TaskRunner {
+	private static final int MAX_BATCH_SIZE = 1024;
+	private static final long TARGET_BATCH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final WorkerCache workers;
+	private volatile int batchSize = 1;
+	private double nanosPerTask = -1;
+
+	TaskRunner(WorkerCache workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Returns the number of tasks to request for the next batch
+	 *
+	 * @return
+	 */
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Computes the answers of the tasks of the batch. Each task is timed from
+	 * the answer of the previous one, so a worker computing the whole batch at
+	 * once shares its time between its answers in the order they come.
+	 *
+	 * @param task
+	 * @return the answers, null for the tasks whose computation failed
+	 * @throws IOException if the jar of the worker cannot be downloaded
+	 * @throws ReflectiveOperationException if the class was not found or its
+	 *             instantiation went wrong
+	 */
+	Answers compute(Task task) throws IOException, ReflectiveOperationException {
+		System.out.println("Retrieving worker");
+		Worker worker = workers.get(task);
+		System.out.println("Starting computation of " + task.getTaskCount() + " tasks");
+		Answers answers = new Answers(task.getTaskCount());
+		int first = task.getTask();
+		int end = first + answers.size();
+		long start = System.nanoTime();
+		long[] last = { start };
+		try {
+			// the worker computes the tasks one by one unless it overrides the batch
+			worker.compute(first, end, (taskNumber, answer) -> {
+				if (taskNumber >= first && taskNumber < end) {
+					long now = System.nanoTime();
+					answers.set(taskNumber - first, answer, now - last[0]);
+					last[0] = now;
+				}
+			});
+		} catch (Exception e) {
+			// the tasks not answered yet failed
+		}
+		updateBatchSize(System.nanoTime() - start, answers.size());
+		return answers;
+	}
+
+	/**
+	 * Sizes the next batch so that it takes about TARGET_BATCH_NANOS to
+	 * compute, from the average time of a task. The size at most doubles from
+	 * one batch to the next.
+	 *
+	 * @param nanos time taken by the last batch
+	 * @param tasks number of tasks of the last batch
+	 */
+	private synchronized void updateBatchSize(long nanos, int tasks) {
+		double last = (double) nanos / tasks;
+		nanosPerTask = nanosPerTask < 0 ? last : 0.75 * nanosPerTask + 0.25 * last;
+		long target = (long) (TARGET_BATCH_NANOS / Math.max(nanosPerTask, 1));
+		batchSize = (int) Math.max(1, Math.min(Math.min(target, 2L * batchSize), MAX_BATCH_SIZE));
+	}
+}
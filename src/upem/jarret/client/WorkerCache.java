@@ -0,0 +1,57 @@
+package upem.jarret.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import upem.jarret.job.Task;
+import upem.jarret.worker.Worker;
+import upem.jarret.worker.WorkerJarCache;
+
+/**
+ * Workers of the threads of a client. The jar of a worker is loaded once for
+ * each class and version, from the jar cache, and its class is shared, but
+ * each thread computes with its own instance: nothing tells that a worker is
+ * thread-safe.
+ */
+class WorkerCache {
+	private final ConcurrentHashMap<String, Class<? extends Worker>> classes = new ConcurrentHashMap<>();
+	private final ThreadLocal<HashMap<String, Worker>> workers = ThreadLocal.withInitial(HashMap::new);
+	private final WorkerJarCache jars;
+
+	WorkerCache(WorkerJarCache jars) {
+		this.jars = jars;
+	}
+
+	/**
+	 * Returns the worker of the task for the calling thread, creating it the
+	 * first time
+	 *
+	 * @param task
+	 * @return
+	 * @throws IOException if the jar of the worker cannot be downloaded
+	 * @throws ReflectiveOperationException if the class was not found or its
+	 *             instantiation went wrong
+	 */
+	Worker get(Task task) throws IOException, ReflectiveOperationException {
+		String key = task.getWorkerClassName() + '\n' + task.getWorkerVersion() + '\n' + task.getWorkerURL();
+		HashMap<String, Worker> threadWorkers = workers.get();
+		Worker worker = threadWorkers.get(key);
+		if (worker == null) {
+			worker = loadClass(key, task).getDeclaredConstructor().newInstance();
+			threadWorkers.put(key, worker);
+		}
+		return worker;
+	}
+
+	private Class<? extends Worker> loadClass(String key, Task task) throws IOException, ClassNotFoundException {
+		Class<? extends Worker> workerClass = classes.get(key);
+		if (workerClass != null) {
+			return workerClass;
+		}
+		// the jar cache makes the threads asking for the same new worker wait for a single load
+		workerClass = jars.getWorkerClass(task.getWorkerURL(), task.getWorkerVersion(), task.getWorkerClassName());
+		classes.putIfAbsent(key, workerClass);
+		return workerClass;
+	}
+}
@@ -82,10 +82,28 @@ public class HTTPReader {
     public ByteBuffer readBytes(int size) throws IOException {
         ByteBuffer bb = ByteBuffer.allocate(size);
         buff.flip();
-        bb.put(buff);
-        readFully(bb, sc);
+        transfer(buff, bb);
+        buff.compact();
+        if(bb.hasRemaining() && !readFully(bb, sc)) {
+            throw new HTTPException("Connection closed before the end of the content");
+        }
         return bb;
     }
+
+    /**
+     * Moves as many bytes as dst can take from src, the bytes left in src
+     * belong to the next message of the connection
+     */
+    static void transfer(ByteBuffer src, ByteBuffer dst) {
+        if(src.remaining() <= dst.remaining()) {
+            dst.put(src);
+            return;
+        }
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + dst.remaining());
+        src.position(part.limit());
+        dst.put(part);
+    }
     
     static boolean readFully(ByteBuffer bb, SocketChannel sc) throws IOException {
         while(sc.read(bb) != -1) {
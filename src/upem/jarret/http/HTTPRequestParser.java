@@ -0,0 +1,510 @@
+package upem.jarret.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import util.BufferPool;
+
+/**
+ * Incremental parser of the requests received by the server. It works directly
+ * on the bytes of the buffer the requests are read into: each call consumes
+ * what is available and keeps its state until the next one, so a request may
+ * arrive in any number of parts. The method, the path and the known headers
+ * are matched against byte constants, the content is read into a buffer
+ * borrowed from a pool until the next reset, and a malformed request is
+ * reported by the ERROR status rather than an exception. The content buffer
+ * grows with the bytes received, a Content-Length alone does not make the
+ * server allocate it.
+ */
+public class HTTPRequestParser {
+	/** the request is not complete, parse has to be called again with more bytes */
+	public static final int NEED_MORE = 0;
+	/** the request, content included, is complete */
+	public static final int COMPLETE = 1;
+	/** the request is malformed, the connection can not be used anymore */
+	public static final int ERROR = 2;
+
+	public static final int METHOD_UNKNOWN = 0;
+	public static final int METHOD_GET = 1;
+	public static final int METHOD_POST = 2;
+
+	public static final int TARGET_UNKNOWN = 0;
+	public static final int TARGET_TASK = 1;
+	public static final int TARGET_ANSWER = 2;
+	public static final int TARGET_ANSWERS = 3;
+	public static final int TARGET_METRICS = 4;
+	public static final int TARGET_COSTS = 5;
+
+	private static final int MAX_TOKEN_SIZE = 64;
+	private static final int MAX_HEAD_SIZE = 8192;
+	private static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+	private static final int INITIAL_CONTENT_SIZE = 4096;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private static final byte[] GET = ascii("GET");
+	private static final byte[] POST = ascii("POST");
+	private static final byte[] TASK = ascii("Task");
+	private static final byte[] ANSWER = ascii("Answer");
+	private static final byte[] ANSWERS = ascii("Answers");
+	private static final byte[] METRICS = ascii("Metrics");
+	private static final byte[] COSTS = ascii("Costs");
+	private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+	// header names and values are compared in lower case
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] CONTENT_TYPE = ascii("content-type");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] MAX_TASKS = ascii("max-tasks");
+	private static final byte[] WORKER = ascii("worker");
+	private static final byte[] APPLICATION_JSON = ascii("application/json");
+	private static final byte[] CLOSE = ascii("close");
+
+	private static final int HEADER_OTHER = 0;
+	private static final int HEADER_CONTENT_LENGTH = 1;
+	private static final int HEADER_CONTENT_TYPE = 2;
+	private static final int HEADER_CONNECTION = 3;
+	private static final int HEADER_MAX_TASKS = 4;
+	private static final int HEADER_WORKER = 5;
+
+	// FNV-1a, the value of the Worker header is hashed as it is read
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// states of the parser, the ones before CONTENT read the head byte by byte
+	private static final int METHOD = 0;
+	private static final int TARGET = 1;
+	private static final int VERSION = 2;
+	private static final int REQUEST_LINE_LF = 3;
+	private static final int HEADER_START = 4;
+	private static final int HEADER_NAME = 5;
+	private static final int HEADER_VALUE_START = 6;
+	private static final int HEADER_VALUE = 7;
+	private static final int HEADER_LF = 8;
+	private static final int HEAD_LF = 9;
+	private static final int CONTENT = 10;
+	private static final int DONE = 11;
+	private static final int FAILED = 12;
+
+	private final byte[] token = new byte[MAX_TOKEN_SIZE];
+	private int tokenLength;
+	private boolean tokenOverflow;
+	private long number;
+	private boolean numberValid;
+	private int header;
+	private int headSize;
+
+	private int state;
+	private int method;
+	private int target;
+	private int contentLength;
+	private boolean json;
+	private boolean connectionClose;
+	private int maxTasks;
+	private long worker;
+	private final BufferPool pool;
+	private ByteBuffer content = null;
+
+	/**
+	 * @param pool pool of the buffers of the contents
+	 */
+	public HTTPRequestParser(BufferPool pool) {
+		this.pool = pool;
+		reset();
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Prepares the parser for the next request of the connection
+	 */
+	public void reset() {
+		state = METHOD;
+		headSize = 0;
+		method = METHOD_UNKNOWN;
+		target = TARGET_UNKNOWN;
+		contentLength = 0;
+		json = false;
+		connectionClose = false;
+		maxTasks = 1;
+		worker = 0;
+		if (content != null) {
+			pool.release(content);
+			content = null;
+		}
+		clearToken();
+	}
+
+	private void clearToken() {
+		tokenLength = 0;
+		tokenOverflow = false;
+		number = 0;
+		numberValid = true;
+	}
+
+	private void append(byte b) {
+		if (tokenLength == MAX_TOKEN_SIZE) {
+			tokenOverflow = true;
+			return;
+		}
+		token[tokenLength++] = b;
+	}
+
+	private boolean tokenEquals(byte[] constant) {
+		if (tokenOverflow || tokenLength != constant.length) {
+			return false;
+		}
+		for (int i = 0; i < tokenLength; i++) {
+			if (token[i] != constant[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte toLowerCase(byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return (byte) (b + ('a' - 'A'));
+		}
+		return b;
+	}
+
+	private void appendDigit(byte b) {
+		if (b < '0' || b > '9' || number > MAX_CONTENT_LENGTH) {
+			numberValid = false;
+			return;
+		}
+		number = number * 10 + (b - '0');
+	}
+
+	/**
+	 * Returns true once a byte of the current request was consumed
+	 *
+	 * @return
+	 */
+	public boolean isStarted() {
+		return state != METHOD || headSize != 0;
+	}
+
+	/**
+	 * Consumes the bytes of the buffer belonging to the current request. The
+	 * bytes of a pipelined request are left in the buffer.
+	 *
+	 * @param in a buffer in read-mode
+	 * @return NEED_MORE, COMPLETE or ERROR
+	 */
+	public int parse(ByteBuffer in) {
+		if (state < CONTENT) {
+			int position = in.position();
+			int end = Math.min(in.limit(), position + MAX_HEAD_SIZE - headSize);
+			while (position < end && state < CONTENT) {
+				byte b = in.get(position++);
+				// most of the bytes are in header names and in values which are skipped
+				if (state == HEADER_NAME && b != ':' && b != '\r') {
+					append(toLowerCase(b));
+				} else if (state == HEADER_VALUE && header == HEADER_OTHER && b != '\r') {
+					continue;
+				} else {
+					parseHeadByte(b);
+				}
+			}
+			headSize += position - in.position();
+			in.position(position);
+			if (state < CONTENT && headSize == MAX_HEAD_SIZE) {
+				state = FAILED;
+			}
+		}
+		while (state == CONTENT && in.hasRemaining()) {
+			if (!content.hasRemaining()) {
+				growContent();
+			}
+			if (in.remaining() <= content.remaining()) {
+				content.put(in);
+			} else {
+				int limit = in.limit();
+				in.limit(in.position() + content.remaining());
+				content.put(in);
+				in.limit(limit);
+			}
+			if (content.position() == contentLength) {
+				content.flip();
+				state = DONE;
+			}
+		}
+		switch (state) {
+		case DONE:
+			return COMPLETE;
+		case FAILED:
+			return ERROR;
+		default:
+			return NEED_MORE;
+		}
+	}
+
+	private void parseHeadByte(byte b) {
+		switch (state) {
+		case METHOD:
+			if (b == '\r' || b == '\n') {
+				state = FAILED;
+			} else if (b == ' ') {
+				method = tokenEquals(GET) ? METHOD_GET : tokenEquals(POST) ? METHOD_POST : METHOD_UNKNOWN;
+				clearToken();
+				state = TARGET;
+			} else {
+				append(b);
+			}
+			break;
+		case TARGET:
+			if (b == '\r' || b == '\n') {
+				state = FAILED;
+			} else if (b == ' ') {
+				target = tokenEquals(TASK) ? TARGET_TASK
+						: tokenEquals(ANSWER) ? TARGET_ANSWER : tokenEquals(ANSWERS) ? TARGET_ANSWERS
+								: tokenEquals(METRICS) ? TARGET_METRICS
+										: tokenEquals(COSTS) ? TARGET_COSTS : TARGET_UNKNOWN;
+				clearToken();
+				state = VERSION;
+			} else {
+				append(b);
+			}
+			break;
+		case VERSION:
+			if (b == '\r') {
+				state = tokenEquals(HTTP_1_1) ? REQUEST_LINE_LF : FAILED;
+				clearToken();
+			} else {
+				append(b);
+			}
+			break;
+		case REQUEST_LINE_LF:
+		case HEADER_LF:
+			if (b != '\n') {
+				state = FAILED;
+				break;
+			}
+			if (state == HEADER_LF) {
+				endHeader();
+			}
+			state = HEADER_START;
+			break;
+		case HEADER_START:
+			if (b == '\r') {
+				state = HEAD_LF;
+				break;
+			}
+			state = HEADER_NAME;
+			// the byte is the first one of the name
+			append(toLowerCase(b));
+			break;
+		case HEADER_NAME:
+			if (b == ':') {
+				header = tokenEquals(CONTENT_LENGTH) ? HEADER_CONTENT_LENGTH
+						: tokenEquals(CONTENT_TYPE) ? HEADER_CONTENT_TYPE
+								: tokenEquals(CONNECTION) ? HEADER_CONNECTION
+										: tokenEquals(MAX_TASKS) ? HEADER_MAX_TASKS
+												: tokenEquals(WORKER) ? HEADER_WORKER : HEADER_OTHER;
+				clearToken();
+				if (header == HEADER_WORKER) {
+					number = FNV_OFFSET_BASIS;
+				}
+				state = HEADER_VALUE_START;
+			} else if (b == '\r') {
+				state = FAILED;
+			} else {
+				append(toLowerCase(b));
+			}
+			break;
+		case HEADER_VALUE_START:
+			if (b == ' ' || b == '\t') {
+				break;
+			}
+			state = HEADER_VALUE;
+			headerValueByte(b);
+			break;
+		case HEADER_VALUE:
+			headerValueByte(b);
+			break;
+		case HEAD_LF:
+			if (b != '\n') {
+				state = FAILED;
+			} else if (contentLength > 0) {
+				content = pool.acquire(Math.min(contentLength, INITIAL_CONTENT_SIZE));
+				content.limit(Math.min(content.capacity(), contentLength));
+				state = CONTENT;
+			} else {
+				state = DONE;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void headerValueByte(byte b) {
+		if (b == '\r') {
+			state = HEADER_LF;
+			return;
+		}
+		switch (header) {
+		case HEADER_CONTENT_LENGTH:
+		case HEADER_MAX_TASKS:
+			if (b != ' ' && b != '\t') {
+				appendDigit(b);
+			}
+			break;
+		case HEADER_CONTENT_TYPE:
+			// the parameters, like the charset, are ignored
+			if (b == ';') {
+				header = HEADER_OTHER;
+				json = tokenEquals(APPLICATION_JSON);
+			} else if (b != ' ' && b != '\t') {
+				append(toLowerCase(b));
+			}
+			break;
+		case HEADER_CONNECTION:
+			append(toLowerCase(b));
+			break;
+		case HEADER_WORKER:
+			number = (number ^ (b & 0xff)) * FNV_PRIME;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Moves the full content buffer to one twice as large, at most the size
+	 * of the content
+	 */
+	private void growContent() {
+		ByteBuffer bigger = pool.acquire((int) Math.min(contentLength, 2L * content.capacity()));
+		bigger.limit(Math.min(bigger.capacity(), contentLength));
+		content.flip();
+		bigger.put(content);
+		pool.release(content);
+		content = bigger;
+	}
+
+	/**
+	 * Records the value of the header whose line just ended
+	 */
+	private void endHeader() {
+		switch (header) {
+		case HEADER_CONTENT_LENGTH:
+			if (!numberValid || number > MAX_CONTENT_LENGTH) {
+				state = FAILED;
+				return;
+			}
+			contentLength = (int) number;
+			break;
+		case HEADER_MAX_TASKS:
+			if (numberValid && number > 0) {
+				maxTasks = (int) Math.min(number, Integer.MAX_VALUE);
+			}
+			break;
+		case HEADER_CONTENT_TYPE:
+			json = tokenEquals(APPLICATION_JSON);
+			break;
+		case HEADER_CONNECTION:
+			connectionClose = tokenEquals(CLOSE);
+			break;
+		case HEADER_WORKER:
+			worker = number;
+			break;
+		default:
+			break;
+		}
+		header = HEADER_OTHER;
+		clearToken();
+	}
+
+	/**
+	 * Returns the hash of the value of the Worker header, the worker the
+	 * client already loaded
+	 *
+	 * @return the hash or 0 if there was no Worker header
+	 */
+	public long getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Returns the hash of the value of the Worker header a client sends when
+	 * it loaded the worker, as computed while parsing
+	 *
+	 * @param className
+	 * @param version
+	 * @return
+	 */
+	public static long hashWorker(String className, String version) {
+		long hash = FNV_OFFSET_BASIS;
+		for (byte b : workerHeaderValue(className, version).getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the value of the Worker header advertising the worker
+	 *
+	 * @param className
+	 * @param version
+	 * @return
+	 */
+	public static String workerHeaderValue(String className, String version) {
+		return className + "/" + version;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public int getTarget() {
+		return target;
+	}
+
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Returns true if the Content-Type is application/json
+	 *
+	 * @return
+	 */
+	public boolean isJSON() {
+		return json;
+	}
+
+	/**
+	 * Returns true if the client sent Connection: close
+	 *
+	 * @return
+	 */
+	public boolean isConnectionClose() {
+		return connectionClose;
+	}
+
+	/**
+	 * Returns the value of the Max-Tasks header, 1 if there is none
+	 *
+	 * @return
+	 */
+	public int getMaxTasks() {
+		return maxTasks;
+	}
+
+	/**
+	 * Returns the content of the complete request, in read-mode. The buffer
+	 * goes back to the pool when the parser is reset.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getContent() {
+		return content == null ? EMPTY : content;
+	}
+}
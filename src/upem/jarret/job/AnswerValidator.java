@@ -0,0 +1,146 @@
+package upem.jarret.job;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import util.JsonCodec;
+
+/**
+ * Checks the answers posted by the clients in a single pass over their bytes
+ * and extracts their fields on the way. An answer is valid if it is exactly one
+ * JSON object holding an Answer or an Error, whose JobId and Task, if present,
+ * are the ones the answer was posted for. The ClientId and the ComputeNanos the
+ * client spent on the task are kept for the cost model of the job. The
+ * clients check the answers they post with it too, so that the server never
+ * refuses an answer a client found valid.
+ *
+ * Not thread-safe, each reactor and each client owns one.
+ */
+public class AnswerValidator {
+	private long jobId;
+	private int task;
+	private String clientId;
+	private long computeNanos;
+	private boolean answer;
+	private String error;
+
+	/**
+	 * Validates the answer of the task of a job
+	 *
+	 * @param json
+	 * @param offset
+	 * @param length
+	 * @param expectedJobId the job given with the answer
+	 * @param expectedTask the task given with the answer
+	 * @return the verdict
+	 */
+	public boolean validate(byte[] json, int offset, int length, long expectedJobId, int expectedTask) {
+		jobId = expectedJobId;
+		task = expectedTask;
+		clientId = null;
+		computeNanos = -1;
+		answer = false;
+		error = null;
+		try {
+			JsonParser jp = JsonCodec.createParser(json, offset, length);
+			try {
+				return parse(jp) && jobId == expectedJobId && task == expectedTask && (answer || error != null);
+			} finally {
+				jp.close();
+			}
+		} catch (JsonParseException e) {
+			return false;
+		} catch (IOException e) {
+			// the bytes are in memory
+			throw new AssertionError(e);
+		}
+	}
+
+	private boolean parse(JsonParser jp) throws IOException {
+		if (jp.nextToken() != JsonToken.START_OBJECT) {
+			return false;
+		}
+		JsonToken token;
+		while ((token = jp.nextToken()) == JsonToken.FIELD_NAME) {
+			String fieldName = jp.getCurrentName();
+			JsonToken value = jp.nextToken();
+			switch (fieldName) {
+			case "JobId":
+				jobId = parseNumber(jp, value);
+				break;
+			case "Task":
+				long number = parseNumber(jp, value);
+				task = number > Integer.MAX_VALUE ? -1 : (int) number;
+				break;
+			case "ClientId":
+				clientId = jp.getText();
+				break;
+			case "ComputeNanos":
+				computeNanos = parseNumber(jp, value);
+				break;
+			case "Answer":
+				answer = true;
+				break;
+			case "Error":
+				error = jp.getText();
+				break;
+			default:
+				break;
+			}
+			jp.skipChildren();
+		}
+		// nothing may follow the object
+		return token == JsonToken.END_OBJECT && jp.nextToken() == null;
+	}
+
+	/**
+	 * Reads a non negative number written as a JSON number or string, without
+	 * creating a String
+	 *
+	 * @return the number or -1 if the value is not one
+	 */
+	private static long parseNumber(JsonParser jp, JsonToken value) throws IOException {
+		if (value == JsonToken.VALUE_NUMBER_INT) {
+			return jp.getLongValue();
+		}
+		if (value != JsonToken.VALUE_STRING) {
+			return -1;
+		}
+		char[] chars = jp.getTextCharacters();
+		int offset = jp.getTextOffset();
+		int length = jp.getTextLength();
+		if (length == 0 || length > 18) {
+			return -1;
+		}
+		long number = 0;
+		for (int i = offset; i < offset + length; i++) {
+			char c = chars[i];
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			number = number * 10 + (c - '0');
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the ClientId of the last answer validated, or null
+	 *
+	 * @return
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Returns the ComputeNanos of the last answer validated
+	 *
+	 * @return the time in nanoseconds, -1 if the client did not give it
+	 */
+	public long getComputeNanos() {
+		return computeNanos;
+	}
+}
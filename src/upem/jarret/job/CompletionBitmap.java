@@ -0,0 +1,138 @@
+package upem.jarret.job;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * One bit per task of a job, memory-mapped from a file of the answers
+ * directory. A bit is set once the answer of the task has been written, so
+ * after a restart only the tasks whose bit is not set are dispatched again.
+ *
+ * The file starts with a header holding a magic number and the number of
+ * tasks, followed by the bits, task i being the bit i % 8 of the byte i / 8.
+ * Only one thread may set bits.
+ */
+public class CompletionBitmap implements Closeable {
+	private static final int MAGIC = 0x4A524254;
+	private static final int HEADER_SIZE = 16;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final int taskNumber;
+	private boolean dirty = false;
+
+	private CompletionBitmap(FileChannel channel, MappedByteBuffer map, int taskNumber) {
+		this.channel = channel;
+		this.map = map;
+		this.taskNumber = taskNumber;
+	}
+
+	/**
+	 * Maps the bitmap file, creating it if needed
+	 *
+	 * @param path
+	 * @param taskNumber number of tasks of the job
+	 * @return
+	 * @throws IOException if the existing file is not the bitmap of a job with taskNumber tasks
+	 */
+	public static CompletionBitmap open(Path path, int taskNumber) throws IOException {
+		if (taskNumber < 0) {
+			throw new IllegalArgumentException("Negative number of tasks");
+		}
+		long size = HEADER_SIZE + (taskNumber + 7L) / 8;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE);
+		try {
+			boolean created = channel.size() == 0;
+			if (!created && channel.size() != size) {
+				throw new IOException("The size of " + path + " does not match " + taskNumber + " tasks");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			map.order(ByteOrder.BIG_ENDIAN);
+			if (created) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, taskNumber);
+				map.force();
+			} else if (map.getInt(0) != MAGIC || map.getInt(4) != taskNumber) {
+				throw new IOException(path + " is not the completion bitmap of a job with " + taskNumber + " tasks");
+			}
+			return new CompletionBitmap(channel, map, taskNumber);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getTaskNumber() {
+		return taskNumber;
+	}
+
+	/**
+	 * Returns true if the bit of the task is set
+	 *
+	 * @param task
+	 * @return
+	 */
+	public boolean get(int task) {
+		checkTask(task);
+		return (map.get(HEADER_SIZE + (task >>> 3)) & (1 << (task & 7))) != 0;
+	}
+
+	/**
+	 * Sets the bit of the task
+	 *
+	 * @param task
+	 */
+	public void set(int task) {
+		checkTask(task);
+		int index = HEADER_SIZE + (task >>> 3);
+		byte b = map.get(index);
+		byte updated = (byte) (b | (1 << (task & 7)));
+		if (b != updated) {
+			map.put(index, updated);
+			dirty = true;
+		}
+	}
+
+	private void checkTask(int task) {
+		if (task < 0 || task >= taskNumber) {
+			throw new IndexOutOfBoundsException("Task " + task + " out of [0, " + taskNumber + "[");
+		}
+	}
+
+	/**
+	 * Copies the bits into a BitSet, used to resume a job
+	 *
+	 * @return
+	 */
+	public BitSet toBitSet() {
+		byte[] bytes = new byte[(taskNumber + 7) / 8];
+		ByteBuffer view = map.duplicate();
+		view.position(HEADER_SIZE);
+		view.get(bytes);
+		return BitSet.valueOf(bytes);
+	}
+
+	/**
+	 * Writes the modified bits to the disk
+	 */
+	public void force() {
+		if (dirty) {
+			map.force();
+			dirty = false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+}
@@ -2,12 +2,28 @@ package upem.jarret.job;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 public class Job {
+	private static final int DEFAULT_TASK_LEASE_SECONDS = 60;
+
+	/**
+	 * What became of an answer handed to saveAnswer
+	 */
+	public enum AnswerStatus {
+		/** saved, the task is completed */
+		SAVED,
+		/** dropped, the task was already completed or does not exist */
+		DROPPED,
+		/** could not be saved, the task is still to be completed */
+		REFUSED
+	}
+
 	private final String jobId;
 	private final String jobTaskNumber;
 	private final String jobDescription;
@@ -15,11 +31,12 @@ public class Job {
 	private final String workerVersion;
 	private final String workerURL;
 	private final String workerClassName;
+	private final int taskNumber;
+	private final LeaseTable leases;
 	private int currentTask;
-	private boolean isFinished = false;
 
 	private Job(String jobId, String jobTaskNumber, String jobDescription, String jobPriority, String workerVersion,
-	        String workerURL, String workerClassName, int currentTask) {
+	        String workerURL, String workerClassName, int currentTask, int taskLeaseSeconds) {
 		this.jobId = Objects.requireNonNull(jobId);
 		this.jobTaskNumber = Objects.requireNonNull(jobTaskNumber);
 		this.jobDescription = Objects.requireNonNull(jobDescription);
@@ -28,13 +45,15 @@ public class Job {
 		this.workerURL = Objects.requireNonNull(workerURL);
 		this.workerClassName = Objects.requireNonNull(workerClassName);
 		this.currentTask = Objects.requireNonNull(currentTask);
+		taskNumber = Integer.parseInt(jobTaskNumber);
+		leases = new LeaseTable(taskNumber, TimeUnit.SECONDS.toNanos(taskLeaseSeconds));
 	}
 
 	/**
 	 * Functions used by the JSON parser
 	 */
 	
-	public int getCurrentTask() {
+	public synchronized int getCurrentTask() {
 		return currentTask;
 	}
 
@@ -66,8 +85,13 @@ public class Job {
 		return workerClassName;
 	}
 	
-	public boolean isFinished() {
-	    return isFinished;
+	/**
+	 * Returns true when every task of the job has been completed
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+	    return leases.isFinished();
     }
 
 	/**
@@ -87,6 +111,7 @@ public class Job {
 		String workerVersion = null;
 		String workerURL = null;
 		String workerClassName = null;
+		int taskLeaseSeconds = DEFAULT_TASK_LEASE_SECONDS;
 
 		while (jp.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName = jp.getCurrentName();
@@ -113,35 +138,146 @@ public class Job {
 			case "WorkerClassName":
 				workerClassName = jp.getText();
 				break;
+			case "TaskLeaseSeconds":
+				taskLeaseSeconds = Integer.parseInt(jp.getText());
+				break;
 			default:
 				System.err.println("Unknown Field");
 			}
 		}
 
-		return new Job(jobId, jobTaskNumber, jobDescription, jobPriority, workerVersion, workerURL, workerClassName, 0);
+		return new Job(jobId, jobTaskNumber, jobDescription, jobPriority, workerVersion, workerURL, workerClassName, 0,
+		        taskLeaseSeconds);
 	}
 
 	/**
-	 * Creates the next task of the job
+	 * Creates a batch of at most maxTasks consecutive tasks and leases them.
+	 * An expired task is always given alone, before the tasks never given.
 	 * 
-	 * @return
+	 * @param maxTasks
+	 * @return the batch or null if every task is either completed or leased
 	 * @throws IOException
 	 */
-	public Task nextTask() throws IOException {
-		Task task = new Task(jobId, workerVersion, workerURL, workerClassName, currentTask);
-		updateCurrentTask();
-		return task;
+	public synchronized Task nextTasks(int maxTasks) throws IOException {
+		if (maxTasks < 1) {
+			throw new IllegalArgumentException("maxTasks must be positive");
+		}
+		long now = System.nanoTime();
+		int task = leases.pollExpired(now);
+		int count = 1;
+		if (task == -1) {
+			task = leases.nextIncomplete(currentTask);
+			if (task >= taskNumber) {
+				currentTask = taskNumber;
+				return null;
+			}
+			count = (int) Math.min(maxTasks, (long) leases.nextComplete(task) - task);
+			currentTask = task + count;
+		}
+		for (int i = task; i < task + count; i++) {
+			leases.lease(i, now);
+		}
+		return new Task(jobId, workerVersion, workerURL, workerClassName, task, count);
 	}
-	
+
 	/**
-	 * Increments currentTask or set isFinished to true if all the tasks are done
+	 * Creates a copy of a batch of the tasks with the oldest outstanding
+	 * leases, once every task was given. The copies are not leased, the
+	 * original lease still expires if no answer comes, and a task is copied
+	 * once per lease.
+	 * 
+	 * @param maxTasks
+	 * @return the copy or null if the job is not in its tail or every
+	 *         outstanding task was already copied
 	 */
-	private void updateCurrentTask() {
-	    currentTask++;
-	    if(currentTask > Integer.parseInt(jobTaskNumber)) {
-	    	isFinished = true;
-	    }
-    }
+	public synchronized Task nextSpeculativeTasks(int maxTasks) {
+		if (maxTasks < 1) {
+			throw new IllegalArgumentException("maxTasks must be positive");
+		}
+		if (leases.nextIncomplete(currentTask) < taskNumber) {
+			return null;
+		}
+		int task = leases.nextSpeculative(System.nanoTime());
+		if (task == -1) {
+			return null;
+		}
+		int count = 1;
+		while (count < maxTasks && task + count < taskNumber && leases.canSpeculate(task + count)) {
+			count++;
+		}
+		for (int i = task; i < task + count; i++) {
+			leases.speculate(i);
+		}
+		Task copy = new Task(jobId, workerVersion, workerURL, workerClassName, task, count);
+		copy.setSpeculative(true);
+		return copy;
+	}
+
+	/**
+	 * Skips the tasks whose bit is set in the completion bitmap
+	 * 
+	 * @param bitmap
+	 */
+	public synchronized void resume(CompletionBitmap bitmap) {
+		if (bitmap.getTaskNumber() != taskNumber) {
+			throw new IllegalArgumentException("The bitmap does not have " + taskNumber + " tasks");
+		}
+		leases.resume(bitmap.toBitSet());
+		currentTask = leases.nextIncomplete(0);
+	}
+
+	/**
+	 * Returns the number of completed tasks
+	 * 
+	 * @return
+	 */
+	public synchronized int getCompletedTasks() {
+		return leases.getCompleted();
+	}
+
+	public int getTaskNumber() {
+		return taskNumber;
+	}
+
+	/**
+	 * Saves the first answer of the task and completes it. The answers coming
+	 * after, from a copy or an expired lease, are dropped.
+	 * 
+	 * @param task
+	 * @param save saves the answer, returns false if it could not
+	 * @return
+	 */
+	public synchronized AnswerStatus saveAnswer(int task, BooleanSupplier save) {
+		if (task < 0 || task >= taskNumber || leases.isCompleted(task)) {
+			return AnswerStatus.DROPPED;
+		}
+		if (!save.getAsBoolean()) {
+			return AnswerStatus.REFUSED;
+		}
+		leases.complete(task);
+		return AnswerStatus.SAVED;
+	}
+
+	/**
+	 * Gives back a completed task whose answer was lost, it is dispatched
+	 * again before the tasks never given
+	 * 
+	 * @param task
+	 * @return false if the task was not completed or does not exist
+	 */
+	public synchronized boolean reopenTask(int task) {
+		return leases.reopen(task);
+	}
+
+	/**
+	 * Returns the time left before a lease of the job expires
+	 * 
+	 * @param now value of System.nanoTime()
+	 * @return the time in nanoseconds, -1 if no lease is outstanding
+	 */
+	public synchronized long nanosToNextExpiry(long now) {
+		return leases.nanosToNextExpiry(now);
+	}
 
 	@Override
     public String toString() {
@@ -0,0 +1,481 @@
+package upem.jarret.job;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stride scheduler choosing the job of the next task. Each job has a pass
+ * which is increased by 1 / weight every time it gives a task, the job with the
+ * smallest pass gives the next one: over time every job gets a share of the
+ * tasks proportional to its weight. Weights may be fractional. Jobs with a
+ * weight of 0 only give tasks when no other job has one to give.
+ *
+ * When no job has a task to give, the tasks with the oldest outstanding leases
+ * of the jobs in their tail are copied, so that a slow or dead client does not
+ * hold the end of a job until its lease expires.
+ *
+ * A client may name the worker it already loaded: a job with this worker is
+ * then preferred as long as its pass is not more than LOCALITY_LAG ahead of
+ * the smallest one, so the clients stay on a job without any job getting more
+ * than LOCALITY_LAG tasks per unit of weight ahead of its share.
+ *
+ * A job with nothing to give, all its tasks being leased, is set aside until
+ * its next lease expires or one of its tasks is reopened, so dispatching is
+ * O(log n) plus the jobs of the worker. Finished jobs are dropped when they
+ * reach the head and removed jobs are skipped lazily. Copying outstanding
+ * tasks looks at every job.
+ */
+public class JobScheduler {
+
+	/**
+	 * How far ahead of the smallest pass a job of the worker of the client may
+	 * be to be preferred
+	 */
+	public static final double LOCALITY_LAG = 4096;
+
+	private static class Entry implements Comparable<Entry> {
+		private final Job job;
+		private final long worker;
+		private final long order;
+		private double weight;
+		private double pass;
+		private boolean removed = false;
+		// set aside until wakeAt, in neither weighted nor idle
+		private boolean waiting = false;
+		private long wakeAt;
+
+		Entry(Job job, long worker, double weight, double pass, long order) {
+			this.job = job;
+			this.worker = worker;
+			this.weight = weight;
+			this.pass = pass;
+			this.order = order;
+		}
+
+		double stride() {
+			return 1 / weight;
+		}
+
+		@Override
+		public int compareTo(Entry entry) {
+			int compare = Double.compare(pass, entry.pass);
+			if (compare != 0) {
+				return compare;
+			}
+			return Long.compare(order, entry.order);
+		}
+	}
+
+	private static final Comparator<Entry> WAKE_ORDER = (e1, e2) -> {
+		int compare = Long.compare(e1.wakeAt - e2.wakeAt, 0);
+		if (compare != 0) {
+			return compare;
+		}
+		return Long.compare(e1.order, e2.order);
+	};
+
+	private final TreeSet<Entry> weighted = new TreeSet<>();
+	private final ArrayDeque<Entry> idle = new ArrayDeque<>();
+	private final TreeSet<Entry> waiting = new TreeSet<>(WAKE_ORDER);
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+	// removed jobs, kept so that their lost answers are still reopened
+	private final ConcurrentHashMap<Long, Job> removedJobs = new ConcurrentHashMap<>();
+	// worker -> jobs using it, the removed ones are dropped lazily
+	private final HashMap<Long, ArrayList<Entry>> byWorker = new HashMap<>();
+	private double virtualTime = 0;
+	private long nextOrder = 0;
+
+	private static void checkWeight(double weight) {
+		if (!(weight >= 0) || Double.isInfinite(weight)) {
+			throw new IllegalArgumentException("Invalid weight: " + weight);
+		}
+	}
+
+	/**
+	 * Adds a job. It starts at the current pass so it does not take the tasks
+	 * of the jobs already there to catch up.
+	 *
+	 * @param job
+	 * @param weight
+	 */
+	public void add(Job job, double weight) {
+		add(job, 0, weight);
+	}
+
+	/**
+	 * Adds a job whose worker the clients name when they ask for tasks
+	 *
+	 * @param job
+	 * @param worker the worker of the job, 0 if it is never preferred
+	 * @param weight
+	 */
+	public synchronized void add(Job job, long worker, double weight) {
+		checkWeight(weight);
+		long jobId = Long.parseLong(job.getJobId());
+		Entry entry = new Entry(Objects.requireNonNull(job), worker, weight, virtualTime, nextOrder++);
+		if (entries.putIfAbsent(jobId, entry) != null) {
+			throw new IllegalStateException("Job " + jobId + " is already scheduled");
+		}
+		removedJobs.remove(jobId);
+		if (worker != 0) {
+			byWorker.computeIfAbsent(worker, w -> new ArrayList<>()).add(entry);
+		}
+		enqueue(entry);
+	}
+
+	private void enqueue(Entry entry) {
+		if (entry.weight == 0) {
+			idle.addLast(entry);
+		} else {
+			weighted.add(entry);
+		}
+	}
+
+	/**
+	 * Removes a job from the scheduler
+	 *
+	 * @param jobId
+	 * @return false if there was no such job
+	 */
+	public synchronized boolean remove(long jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null) {
+			return false;
+		}
+		// get and getRemoved do not lock, the job is always in one of the maps
+		removedJobs.put(jobId, entry.job);
+		entries.remove(jobId);
+		entry.removed = true;
+		if (entry.waiting) {
+			waiting.remove(entry);
+			entry.waiting = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back to its job a completed task whose answer was lost. A job
+	 * dropped because it was finished is scheduled again, at the current
+	 * pass. The task of a removed job is reopened too but it is only computed
+	 * once the job is added again.
+	 *
+	 * @param jobId
+	 * @param task
+	 * @return false if the task was not completed or its job is not scheduled
+	 */
+	public synchronized boolean reopenTask(long jobId, int task) {
+		Entry entry = entries.get(jobId);
+		if (entry == null) {
+			Job job = removedJobs.get(jobId);
+			if (job != null) {
+				job.reopenTask(task);
+			}
+			return false;
+		}
+		if (!entry.job.reopenTask(task)) {
+			return false;
+		}
+		if (entry.waiting) {
+			wake(entry);
+		} else if (entry.removed) {
+			// the dropped entry may still be in the queues, it is skipped there
+			Entry reopened = new Entry(entry.job, entry.worker, entry.weight, Math.max(entry.pass, virtualTime),
+					nextOrder++);
+			entries.put(jobId, reopened);
+			if (entry.worker != 0) {
+				byWorker.computeIfAbsent(entry.worker, w -> new ArrayList<>()).add(reopened);
+			}
+			enqueue(reopened);
+		}
+		return true;
+	}
+
+	/**
+	 * Changes the weight of a job, it applies from its next task
+	 *
+	 * @param jobId
+	 * @param weight
+	 * @return false if there was no such job
+	 */
+	public synchronized boolean setWeight(long jobId, double weight) {
+		checkWeight(weight);
+		Entry entry = entries.get(jobId);
+		if (entry == null) {
+			return false;
+		}
+		boolean wasIdle = entry.weight == 0;
+		boolean isIdle = weight == 0;
+		entry.weight = weight;
+		if (wasIdle != isIdle && !entry.waiting) {
+			if (wasIdle) {
+				idle.remove(entry);
+			} else {
+				weighted.remove(entry);
+			}
+			entry.pass = Math.max(entry.pass, virtualTime);
+			enqueue(entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the job, this does not lock the scheduler
+	 *
+	 * @param jobId
+	 * @return the job or null if it is not scheduled
+	 */
+	public Job get(long jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null) {
+			return null;
+		}
+		return entry.job;
+	}
+
+	/**
+	 * Returns a removed job, it still records the answers it was given
+	 *
+	 * @param jobId
+	 * @return the job or null if it was not removed or was added again
+	 */
+	public Job getRemoved(long jobId) {
+		return removedJobs.get(jobId);
+	}
+
+	/**
+	 * Returns the job which would give the next task if it has one
+	 *
+	 * @return the job or null if there is none
+	 */
+	public synchronized Job peek() {
+		Entry entry;
+		while ((entry = first()) != null && entry.removed) {
+			weighted.pollFirst();
+		}
+		if (entry == null) {
+			entry = idle.peekFirst();
+		}
+		return entry == null ? null : entry.job;
+	}
+
+	/**
+	 * Gives a batch of at most maxTasks tasks of the job with the smallest
+	 * pass which has a task. The pass grows with the size of the batch so the
+	 * shares stay counted in tasks. When no job has one, it is a copy of
+	 * outstanding tasks.
+	 *
+	 * @param maxTasks
+	 * @return the batch or null if no job has a task to give
+	 * @throws IOException
+	 */
+	public Task nextTasks(int maxTasks) throws IOException {
+		return nextTasks(maxTasks, 0);
+	}
+
+	/**
+	 * Gives a batch of at most maxTasks tasks, preferring a job of the worker
+	 * the client already loaded
+	 *
+	 * @param maxTasks
+	 * @param worker the worker of the client, 0 if it has none
+	 * @return the batch or null if no job has a task to give
+	 * @throws IOException
+	 */
+	public synchronized Task nextTasks(int maxTasks, long worker) throws IOException {
+		long now = System.nanoTime();
+		wakeExpired(now);
+		Task task = null;
+		if (worker != 0) {
+			task = nextLocalTasks(maxTasks, worker, now);
+			if (task != null) {
+				return task;
+			}
+		}
+		Entry entry;
+		while ((entry = weighted.pollFirst()) != null) {
+			if (!isActive(entry)) {
+				continue;
+			}
+			try {
+				task = entry.job.nextTasks(maxTasks);
+			} catch (IOException | RuntimeException e) {
+				weighted.add(entry);
+				throw e;
+			}
+			if (task == null) {
+				setAside(entry, now);
+				continue;
+			}
+			virtualTime = entry.pass;
+			entry.pass += entry.stride() * task.getTaskCount();
+			weighted.add(entry);
+			return task;
+		}
+
+		while ((entry = idle.pollFirst()) != null) {
+			if (!isActive(entry)) {
+				continue;
+			}
+			try {
+				task = entry.job.nextTasks(maxTasks);
+			} catch (IOException | RuntimeException e) {
+				idle.addFirst(entry);
+				throw e;
+			}
+			if (task == null) {
+				setAside(entry, now);
+				continue;
+			}
+			idle.addLast(entry);
+			return task;
+		}
+		return nextSpeculativeTasks(maxTasks);
+	}
+
+	/**
+	 * Gives a copy of outstanding tasks of the first job in its tail, in the
+	 * order of the passes
+	 */
+	private Task nextSpeculativeTasks(int maxTasks) {
+		for (Entry entry : weighted) {
+			if (!entry.removed) {
+				Task task = entry.job.nextSpeculativeTasks(maxTasks);
+				if (task != null) {
+					return task;
+				}
+			}
+		}
+		for (Entry entry : idle) {
+			if (!entry.removed) {
+				Task task = entry.job.nextSpeculativeTasks(maxTasks);
+				if (task != null) {
+					return task;
+				}
+			}
+		}
+		// the jobs in their tail are there, all their tasks are leased
+		for (Entry entry : waiting) {
+			Task task = entry.job.nextSpeculativeTasks(maxTasks);
+			if (task != null) {
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes out of the queues a job which has no task to give until its next
+	 * lease expires. A finished job is dropped instead.
+	 */
+	private void setAside(Entry entry, long now) {
+		long nanos = entry.job.nanosToNextExpiry(now);
+		if (nanos == -1) {
+			if (!isActive(entry)) {
+				return;
+			}
+			// nothing is leased yet nothing was given, it is looked at again on the next call
+			nanos = 0;
+		}
+		entry.waiting = true;
+		entry.wakeAt = now + nanos;
+		waiting.add(entry);
+	}
+
+	/**
+	 * Puts back in the queues the jobs whose next lease has expired
+	 */
+	private void wakeExpired(long now) {
+		Entry entry;
+		while (!waiting.isEmpty() && (entry = waiting.first()).wakeAt - now <= 0) {
+			wake(entry);
+		}
+	}
+
+	private void wake(Entry entry) {
+		waiting.remove(entry);
+		entry.waiting = false;
+		entry.pass = Math.max(entry.pass, virtualTime);
+		enqueue(entry);
+	}
+
+	/**
+	 * Returns the time left before a lease of a scheduled job expires, its
+	 * task can then be dispatched again
+	 * 
+	 * @param now value of System.nanoTime()
+	 * @return the time in nanoseconds, -1 if no lease is outstanding
+	 */
+	public long nanosToNextExpiry(long now) {
+		long next = -1;
+		for (Entry entry : entries.values()) {
+			long nanos = entry.job.nanosToNextExpiry(now);
+			if (nanos != -1 && (next == -1 || nanos < next)) {
+				next = nanos;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Gives a batch of a job of the worker whose pass is not more than
+	 * LOCALITY_LAG ahead of the smallest one
+	 */
+	private Task nextLocalTasks(int maxTasks, long worker, long now) throws IOException {
+		ArrayList<Entry> local = byWorker.get(worker);
+		Entry first = first();
+		if (local == null || first == null) {
+			return null;
+		}
+		// the smallest pass is the virtual time, even when the local jobs keep it from giving tasks
+		virtualTime = Math.max(virtualTime, first.pass);
+		double limit = virtualTime + LOCALITY_LAG;
+		for (Iterator<Entry> it = local.iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (!isActive(entry)) {
+				it.remove();
+				continue;
+			}
+			if (entry.weight == 0 || entry.waiting || entry.pass > limit) {
+				continue;
+			}
+			Task task = entry.job.nextTasks(maxTasks);
+			weighted.remove(entry);
+			if (task == null) {
+				setAside(entry, now);
+				continue;
+			}
+			entry.pass += entry.stride() * task.getTaskCount();
+			weighted.add(entry);
+			return task;
+		}
+		if (local.isEmpty()) {
+			byWorker.remove(worker);
+		}
+		return null;
+	}
+
+	private Entry first() {
+		return weighted.isEmpty() ? null : weighted.first();
+	}
+
+	/**
+	 * Returns false if the entry has to be dropped
+	 */
+	private boolean isActive(Entry entry) {
+		if (entry.removed) {
+			return false;
+		}
+		if (entry.job.isFinished()) {
+			entry.removed = true;
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,303 @@
+package upem.jarret.job;
+
+import java.util.BitSet;
+
+/**
+ * Keeps track of the tasks handed to the clients. All the leases of a job have
+ * the same duration, so they expire in the order they were issued: the
+ * outstanding leases are kept in a ring in issue order and the expired ones are
+ * moved to a second ring to be dispatched again. Completed tasks are kept in a
+ * bitset, a completed lease is only dropped from the ring when it reaches its
+ * head. Every operation but reopen is O(1) amortized and the memory is one bit
+ * per task plus twelve bytes per outstanding lease.
+ *
+ * In the tail of the job, the outstanding tasks can be given a second time,
+ * oldest lease first: a second bitset records the tasks copied since their
+ * last lease.
+ */
+public class LeaseTable {
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int NO_TASK = -1;
+
+	private final int taskNumber;
+	private final BitSet completed;
+	private long leaseNanos;
+	private int nbCompleted = 0;
+
+	// outstanding leases, in issue order, NO_TASK for a lease cancelled by reopen
+	private int[] leasedTasks = new int[INITIAL_CAPACITY];
+	private long[] leasedAt = new long[INITIAL_CAPACITY];
+	private int leasedHead = 0;
+	private int leasedSize = 0;
+
+	// expired leases waiting to be dispatched again
+	private int[] expired = new int[INITIAL_CAPACITY];
+	private int expiredHead = 0;
+	private int expiredSize = 0;
+
+	// tasks copied since their last lease, allocated by the first copy
+	private BitSet speculated = null;
+	// number of outstanding leases from the head already looked at for a copy
+	private int speculationCursor = 0;
+
+	/**
+	 * @param taskNumber number of tasks of the job
+	 * @param leaseNanos time a client has to answer before the task is given to another one
+	 */
+	public LeaseTable(int taskNumber, long leaseNanos) {
+		if (taskNumber < 0) {
+			throw new IllegalArgumentException("Negative number of tasks");
+		}
+		this.taskNumber = taskNumber;
+		this.completed = new BitSet(taskNumber);
+		setLeaseNanos(leaseNanos);
+	}
+
+	public void setLeaseNanos(long leaseNanos) {
+		if (leaseNanos <= 0) {
+			throw new IllegalArgumentException("The lease duration must be positive");
+		}
+		this.leaseNanos = leaseNanos;
+	}
+
+	/**
+	 * Records that the task was handed to a client at the time now
+	 *
+	 * @param task
+	 * @param now value of System.nanoTime()
+	 */
+	public void lease(int task, long now) {
+		if (leasedSize == leasedTasks.length) {
+			growLeased();
+		}
+		int index = (leasedHead + leasedSize) % leasedTasks.length;
+		leasedTasks[index] = task;
+		leasedAt[index] = now;
+		leasedSize++;
+		if (speculated != null) {
+			speculated.clear(task);
+		}
+	}
+
+	/**
+	 * Marks the task as completed
+	 *
+	 * @param task
+	 * @return false if the task was already completed or does not exist
+	 */
+	public boolean complete(int task) {
+		if (task < 0 || task >= taskNumber || completed.get(task)) {
+			return false;
+		}
+		completed.set(task);
+		nbCompleted++;
+		return true;
+	}
+
+	/**
+	 * Marks a completed task as not completed and queues it to be dispatched
+	 * again first. Its lease, if it is still in the ring, is cancelled so that
+	 * it does not expire into a second dispatch: this looks through the
+	 * outstanding leases.
+	 *
+	 * @param task
+	 * @return false if the task was not completed or does not exist
+	 */
+	public boolean reopen(int task) {
+		if (task < 0 || task >= taskNumber || !completed.get(task)) {
+			return false;
+		}
+		completed.clear(task);
+		nbCompleted--;
+		for (int i = 0; i < leasedSize; i++) {
+			int index = (leasedHead + i) % leasedTasks.length;
+			if (leasedTasks[index] == task) {
+				leasedTasks[index] = NO_TASK;
+				break;
+			}
+		}
+		addExpired(task);
+		return true;
+	}
+
+	public boolean isCompleted(int task) {
+		return completed.get(task);
+	}
+
+	/**
+	 * Marks as completed the tasks completed before a restart
+	 *
+	 * @param tasks
+	 */
+	public void resume(BitSet tasks) {
+		completed.or(tasks);
+		if (completed.length() > taskNumber) {
+			completed.clear(taskNumber, completed.length());
+		}
+		nbCompleted = completed.cardinality();
+	}
+
+	/**
+	 * Returns the first task from the given one which is not completed
+	 *
+	 * @param from
+	 * @return the task, or the number of tasks if they are all completed
+	 */
+	public int nextIncomplete(int from) {
+		return Math.min(completed.nextClearBit(from), taskNumber);
+	}
+
+	/**
+	 * Returns the first completed task from the given one
+	 *
+	 * @param from
+	 * @return the task, or the number of tasks if there is none
+	 */
+	public int nextComplete(int from) {
+		int task = completed.nextSetBit(from);
+		return task == -1 ? taskNumber : Math.min(task, taskNumber);
+	}
+
+	/**
+	 * Returns the next expired task which still has to be computed
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return the task or -1 if no lease has expired
+	 */
+	public int pollExpired(long now) {
+		collectExpired(now);
+		while (expiredSize > 0) {
+			int task = expired[expiredHead];
+			expiredHead = (expiredHead + 1) % expired.length;
+			expiredSize--;
+			if (!completed.get(task)) {
+				return task;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the time left before the oldest outstanding lease expires
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return the time in nanoseconds, 0 if a task is waiting to be dispatched
+	 *         again, -1 if no lease is outstanding
+	 */
+	public long nanosToNextExpiry(long now) {
+		collectExpired(now);
+		if (expiredSize > 0) {
+			return 0;
+		}
+		if (leasedSize == 0) {
+			return -1;
+		}
+		return leaseNanos - (now - leasedAt[leasedHead]);
+	}
+
+	/**
+	 * Moves the expired leases from the leased ring to the expired one
+	 */
+	private void collectExpired(long now) {
+		while (leasedSize > 0) {
+			int task = leasedTasks[leasedHead];
+			if (task != NO_TASK && !completed.get(task)) {
+				if (now - leasedAt[leasedHead] < leaseNanos) {
+					return;
+				}
+				addExpired(task);
+			}
+			leasedHead = (leasedHead + 1) % leasedTasks.length;
+			leasedSize--;
+			if (speculationCursor > 0) {
+				speculationCursor--;
+			}
+		}
+	}
+
+	/**
+	 * Returns the task with the oldest outstanding lease which was not copied
+	 * since it was leased
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return the task or -1 if there is none
+	 */
+	public int nextSpeculative(long now) {
+		collectExpired(now);
+		while (speculationCursor < leasedSize) {
+			int task = leasedTasks[(leasedHead + speculationCursor) % leasedTasks.length];
+			speculationCursor++;
+			if (task != NO_TASK && canSpeculate(task)) {
+				return task;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the task is not completed and was not copied since its
+	 * last lease
+	 *
+	 * @param task
+	 * @return
+	 */
+	public boolean canSpeculate(int task) {
+		return !completed.get(task) && (speculated == null || !speculated.get(task));
+	}
+
+	/**
+	 * Records that the task was given a second time
+	 *
+	 * @param task
+	 */
+	public void speculate(int task) {
+		if (speculated == null) {
+			speculated = new BitSet(taskNumber);
+		}
+		speculated.set(task);
+	}
+
+	private void addExpired(int task) {
+		if (expiredSize == expired.length) {
+			int[] tmp = new int[expired.length * 2];
+			for (int i = 0; i < expiredSize; i++) {
+				tmp[i] = expired[(expiredHead + i) % expired.length];
+			}
+			expired = tmp;
+			expiredHead = 0;
+		}
+		expired[(expiredHead + expiredSize) % expired.length] = task;
+		expiredSize++;
+	}
+
+	private void growLeased() {
+		int[] tasks = new int[leasedTasks.length * 2];
+		long[] at = new long[leasedAt.length * 2];
+		for (int i = 0; i < leasedSize; i++) {
+			int index = (leasedHead + i) % leasedTasks.length;
+			tasks[i] = leasedTasks[index];
+			at[i] = leasedAt[index];
+		}
+		leasedTasks = tasks;
+		leasedAt = at;
+		leasedHead = 0;
+	}
+
+	/**
+	 * Returns the number of completed tasks
+	 *
+	 * @return
+	 */
+	public int getCompleted() {
+		return nbCompleted;
+	}
+
+	/**
+	 * Returns true when every task of the job has been completed
+	 *
+	 * @return
+	 */
+	public boolean isFinished() {
+		return nbCompleted == taskNumber;
+	}
+}
@@ -1,9 +1,11 @@
 package upem.jarret.job;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import util.JsonCodec;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
@@ -15,16 +17,31 @@ public class Task {
 	private String _WorkerURL;
 	private String _WorkerClassName;
 	private String _Task;
+	private int _TaskCount = 1;
 	private int _ComeBackInSeconds = 300;
+	// a copy of tasks already given, not sent to the client
+	private boolean speculative = false;
 
 	public Task() {}
 	
 	public Task(String jobId, String workerVersion, String workerURL, String workerClassName, int task) {
+		this(jobId, workerVersion, workerURL, workerClassName, task, 1);
+	}
+
+	/**
+	 * Creates a batch of the taskCount tasks starting at task
+	 */
+	public Task(String jobId, String workerVersion, String workerURL, String workerClassName, int task,
+			int taskCount) {
+		if (taskCount < 1) {
+			throw new IllegalArgumentException("A batch has at least one task");
+		}
 		this._JobId = jobId;
 		this._WorkerVersion = workerVersion;
 		this._WorkerURL = workerURL;
 		this._WorkerClassName = workerClassName;
 		this._Task = String.valueOf(task);
+		this._TaskCount = taskCount;
 		_ComeBackInSeconds = -1;
 	}
 	
@@ -52,6 +69,16 @@ public class Task {
 		return Integer.parseInt(_Task);
 	}
 
+	/**
+	 * Returns the number of tasks of the batch, which are the tasks
+	 * [getTask(), getTask() + getTaskCount()[
+	 * 
+	 * @return
+	 */
+	public int getTaskCount() {
+		return _TaskCount;
+	}
+
 	public int getComeBackInSeconds() {
 		return _ComeBackInSeconds;
 	}
@@ -76,10 +103,37 @@ public class Task {
 		_Task = t;
 	}
 
+	/**
+	 * Sets the batch to the tasks [start, end[
+	 * 
+	 * @param start
+	 * @param end
+	 */
+	public void setTasks(int start, int end) {
+		if (end <= start) {
+			throw new IllegalArgumentException("Empty batch [" + start + ", " + end + "[");
+		}
+		_Task = String.valueOf(start);
+		_TaskCount = end - start;
+	}
+
 	public void setComeBackInSeconds(int cbis) {
 		_ComeBackInSeconds = cbis;
 	}
 	
+	/**
+	 * Returns true if the batch is a copy of tasks whose lease is outstanding
+	 * 
+	 * @return
+	 */
+	public boolean isSpeculative() {
+		return speculative;
+	}
+
+	public void setSpeculative(boolean speculative) {
+		this.speculative = speculative;
+	}
+
 	public boolean checkFull() {
 		return _JobId != null && _WorkerVersion != null && _WorkerClassName != null && _WorkerURL != null && _Task != null;
 	}
@@ -93,9 +147,28 @@ public class Task {
 	 * @throws JsonParseException
 	 */
 	public static Task parseJSON(String json) throws JsonParseException, IOException {
+		try (JsonParser jp = JsonCodec.createParser(json)) {
+			return parseJSON(jp);
+		}
+	}
+
+	/**
+	 * Parses the remaining UTF-8 bytes of the buffer, without decoding them to
+	 * a String first
+	 * 
+	 * @param json JSOn to parse
+	 * @return task data parsed
+	 * @throws IOException
+	 * @throws JsonParseException
+	 */
+	public static Task parseJSON(ByteBuffer json) throws JsonParseException, IOException {
+		try (JsonParser jp = JsonCodec.createParser(json)) {
+			return parseJSON(jp);
+		}
+	}
+
+	private static Task parseJSON(JsonParser jp) throws JsonParseException, IOException {
 		Task task = new Task();
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(json);
 		jp.nextToken();
 		while (jp.nextToken() != JsonToken.END_OBJECT) {
 			String fieldname = jp.getCurrentName();
@@ -113,11 +186,23 @@ public class Task {
 				task.setWorkerClassName(jp.getText());
 			} else if ("Task".equals(fieldname)) {
 				task.setTask(jp.getText());
+			} else if ("Tasks".equals(fieldname)) {
+				if (jp.getCurrentToken() != JsonToken.START_ARRAY || jp.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+					throw new JsonParseException("Tasks must be an array [start, end]", jp.getCurrentLocation());
+				}
+				int start = jp.getIntValue();
+				if (jp.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+					throw new JsonParseException("Tasks must be an array [start, end]", jp.getCurrentLocation());
+				}
+				int end = jp.getIntValue();
+				if (jp.nextToken() != JsonToken.END_ARRAY) {
+					throw new JsonParseException("Tasks must be an array [start, end]", jp.getCurrentLocation());
+				}
+				task.setTasks(start, end);
 			} else {
 				throw new IllegalStateException("Unrecognized field name: " + fieldname);
 			}
 		}
-		jp.close();
 		return task;
 	}
 	
@@ -128,9 +213,8 @@ public class Task {
 	 * @throws IOException
 	 */
 	public String toJSON() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		JsonFactory jf = new JsonFactory();
-		JsonGenerator jg = jf.createGenerator(baos);
+		StringWriter writer = new StringWriter();
+		JsonGenerator jg = JsonCodec.createGenerator(writer);
 
 		jg.writeStartObject();
 
@@ -139,10 +223,17 @@ public class Task {
 		jg.writeStringField("WorkerURL", _WorkerURL);
 		jg.writeStringField("WorkerClassName", _WorkerClassName);
 		jg.writeStringField("Task", _Task);
+		if (_TaskCount > 1) {
+			int start = Integer.parseInt(_Task);
+			jg.writeArrayFieldStart("Tasks");
+			jg.writeNumber(start);
+			jg.writeNumber(start + _TaskCount);
+			jg.writeEndArray();
+		}
 
 		jg.writeEndObject();
 		jg.close();
 		
-		return baos.toString();
+		return writer.toString();
 	}
 }
@@ -0,0 +1,438 @@
+package upem.jarret.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.job.Task;
+import upem.jarret.worker.Worker;
+import util.ByteBufferOutputStream;
+import util.Histogram;
+import util.JsonCodec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Load generator simulating many clients of a server on a single thread. Each
+ * simulated client speaks the protocol of the real client on its own
+ * persistent connection: it requests a batch of tasks, answers it with a stub
+ * worker, posts the answers, waits for the think time and starts again. The
+ * throughput, the latency of the requests and the errors are reported every
+ * second and at the end.
+ */
+public class LoadGenerator {
+	private static final long REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long RECONNECT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	// a client told there is no task waits at least this long
+	private static final long NO_TASK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final String CLIENT_ID = "loadgen";
+
+	private final InetSocketAddress sa;
+	private final SimulatedClient[] clients;
+	private final long durationNanos;
+	private final long thinkNanos;
+	private final Worker worker;
+	private final Selector selector;
+	private final byte[] getTask;
+	private final String host;
+	private final ByteBufferOutputStream content = new ByteBufferOutputStream(4096);
+	private final PriorityQueue<SimulatedClient> sleeping = new PriorityQueue<>(
+			(a, b) -> Long.compare(a.wakeAt, b.wakeAt));
+
+	private final Histogram getLatency = new Histogram();
+	private final Histogram postLatency = new Histogram();
+	private int connected = 0;
+	private long tasks = 0;
+	private long answers = 0;
+	private long noTask = 0;
+	private long rejected = 0;
+	private long unavailable = 0;
+	private long httpErrors = 0;
+	private long connectionErrors = 0;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param nbClients number of simulated clients
+	 * @param durationSeconds
+	 * @param answerSize size of the answers of the stub worker
+	 * @param thinkMillis time a client waits between two batches
+	 * @param maxTasks number of tasks a client requests at once
+	 * @throws IOException
+	 */
+	public LoadGenerator(String host, int port, int nbClients, int durationSeconds, int answerSize, int thinkMillis,
+			int maxTasks) throws IOException {
+		if (nbClients < 1 || durationSeconds < 1 || thinkMillis < 0 || maxTasks < 1) {
+			throw new IllegalArgumentException("Invalid load");
+		}
+		this.host = host;
+		sa = new InetSocketAddress(host, port);
+		clients = new SimulatedClient[nbClients];
+		for (int i = 0; i < nbClients; i++) {
+			clients[i] = new SimulatedClient(i);
+		}
+		durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		thinkNanos = TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+		worker = new StubWorker(answerSize);
+		selector = Selector.open();
+		getTask = ("GET Task HTTP/1.1\r\nHost: " + host + "\r\nMax-Tasks: " + maxTasks + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Runs the load for its duration, then prints the report
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		long start = System.nanoTime();
+		for (SimulatedClient client : clients) {
+			connect(client, start);
+		}
+		long lastReport = start;
+		long lastAnswers = 0;
+		long lastTasks = 0;
+		long now = start;
+		while (now - start < durationNanos) {
+			long timeout = lastReport + REPORT_NANOS - now;
+			SimulatedClient next = sleeping.peek();
+			if (next != null) {
+				timeout = Math.min(timeout, next.wakeAt - now);
+			}
+			if (timeout > 0) {
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+			} else {
+				selector.selectNow();
+			}
+			now = System.nanoTime();
+			for (SelectionKey key : selector.selectedKeys()) {
+				process(key, now);
+			}
+			selector.selectedKeys().clear();
+			wakeUp(now);
+			if (now - lastReport >= REPORT_NANOS) {
+				double seconds = (now - lastReport) / 1e9;
+				System.out.printf("%5.1fs  %d connected  %.0f tasks/s  %.0f answers/s  %d errors%n",
+						(now - start) / 1e9, connected, (tasks - lastTasks) / seconds,
+						(answers - lastAnswers) / seconds, errors());
+				lastReport = now;
+				lastTasks = tasks;
+				lastAnswers = answers;
+			}
+		}
+		for (SimulatedClient client : clients) {
+			if (client.sc != null) {
+				client.sc.close();
+			}
+		}
+		selector.close();
+		report((System.nanoTime() - start) / 1e9);
+	}
+
+	private long errors() {
+		return rejected + unavailable + httpErrors + connectionErrors;
+	}
+
+	private void connect(SimulatedClient client, long now) {
+		try {
+			SocketChannel sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			client.sc = sc;
+			client.state = SimulatedClient.CONNECTING;
+			if (sc.connect(sa)) {
+				client.key = sc.register(selector, 0, client);
+				connected(client, now);
+			} else {
+				client.key = sc.register(selector, SelectionKey.OP_CONNECT, client);
+			}
+		} catch (IOException e) {
+			connectionLost(client, now);
+		}
+	}
+
+	private void connected(SimulatedClient client, long now) throws IOException {
+		connected++;
+		requestTask(client, now);
+	}
+
+	/**
+	 * Closes the connection of the client, which reconnects a bit later
+	 */
+	private void connectionLost(SimulatedClient client, long now) {
+		connectionErrors++;
+		disconnect(client);
+		sleep(client, now + RECONNECT_NANOS);
+	}
+
+	private void disconnect(SimulatedClient client) {
+		if (client.state != SimulatedClient.CONNECTING && client.sc != null) {
+			connected--;
+		}
+		if (client.sc != null) {
+			try {
+				client.sc.close();
+			} catch (IOException e) {
+				//
+			}
+		}
+		client.disconnected();
+	}
+
+	private void sleep(SimulatedClient client, long wakeAt) {
+		client.wakeAt = wakeAt;
+		sleeping.add(client);
+	}
+
+	/**
+	 * Wakes the clients whose think time or reconnection delay is over
+	 */
+	private void wakeUp(long now) {
+		SimulatedClient client;
+		while ((client = sleeping.peek()) != null && client.wakeAt <= now) {
+			sleeping.poll();
+			if (client.state == SimulatedClient.DISCONNECTED) {
+				connect(client, now);
+				continue;
+			}
+			try {
+				requestTask(client, now);
+			} catch (IOException e) {
+				connectionLost(client, now);
+			}
+		}
+	}
+
+	private void process(SelectionKey key, long now) {
+		SimulatedClient client = (SimulatedClient) key.attachment();
+		try {
+			if (key.isValid() && key.isConnectable()) {
+				if (client.sc.finishConnect()) {
+					connected(client, now);
+				}
+				return;
+			}
+			if (key.isValid() && key.isWritable()) {
+				send(client);
+			}
+			if (key.isValid() && key.isReadable()) {
+				receive(client, now);
+			}
+		} catch (IOException e) {
+			connectionLost(client, now);
+		}
+	}
+
+	private void requestTask(SimulatedClient client, long now) throws IOException {
+		client.task = null;
+		client.out = ByteBuffer.wrap(getTask);
+		client.sentAt = now;
+		send(client);
+	}
+
+	/**
+	 * Writes what the socket accepts of the request, and waits for the
+	 * response once it is sent
+	 */
+	private void send(SimulatedClient client) throws IOException {
+		client.sc.write(client.out);
+		if (client.out.hasRemaining()) {
+			client.state = SimulatedClient.SENDING;
+			client.key.interestOps(SelectionKey.OP_WRITE);
+		} else {
+			client.state = SimulatedClient.RECEIVING;
+			client.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void receive(SimulatedClient client, long now) throws IOException {
+		if (client.sc.read(client.in) == -1) {
+			connectionLost(client, now);
+			return;
+		}
+		if (!client.isResponseComplete()) {
+			return;
+		}
+		int status = client.getStatus();
+		if (status == -1) {
+			httpErrors++;
+			connectionLost(client, now);
+			return;
+		}
+		boolean close = client.isClose();
+		Task batch = client.task;
+		if (batch == null) {
+			getLatency.record(now - client.sentAt);
+			Task task = status == 200 ? parseTask(client.getContent()) : null;
+			client.responseRead();
+			if (status != 200) {
+				httpErrors++;
+			} else if (task == null) {
+				noTask++;
+			}
+			if (task == null) {
+				next(client, close, now, Math.max(thinkNanos, NO_TASK_NANOS));
+				return;
+			}
+			tasks += task.getTaskCount();
+			if (close) {
+				// the server will not read the answers, the lease of the batch expires
+				disconnect(client);
+				connect(client, now);
+				return;
+			}
+			postAnswers(client, task, now);
+			return;
+		}
+		postLatency.record(now - client.sentAt);
+		client.responseRead();
+		switch (status) {
+		case 200:
+			answers += batch.getTaskCount();
+			break;
+		case 503:
+			unavailable++;
+			break;
+		case 400:
+			rejected++;
+			break;
+		default:
+			httpErrors++;
+			break;
+		}
+		next(client, close, now, thinkNanos);
+	}
+
+	/**
+	 * Requests the next batch after the delay, on a new connection if the
+	 * server closes this one
+	 */
+	private void next(SimulatedClient client, boolean close, long now, long delay) throws IOException {
+		if (close) {
+			disconnect(client);
+			if (delay == 0) {
+				connect(client, now);
+			} else {
+				sleep(client, now + delay);
+			}
+			return;
+		}
+		if (delay == 0) {
+			requestTask(client, now);
+			return;
+		}
+		client.state = SimulatedClient.THINKING;
+		client.key.interestOps(0);
+		sleep(client, now + delay);
+	}
+
+	/**
+	 * Parses the response to GET Task
+	 *
+	 * @return the batch, or null if the server has no task to give
+	 */
+	private static Task parseTask(ByteBuffer json) {
+		try {
+			Task task = Task.parseJSON(json);
+			return task.checkFull() ? task : null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the answers of the batch with the stub worker and posts them as
+	 * the real client does
+	 */
+	private void postAnswers(SimulatedClient client, Task task, long now) throws IOException {
+		content.reset();
+		content.writeLong(task.getJobId());
+		String target;
+		if (task.getTaskCount() == 1) {
+			target = "Answer";
+			content.writeInt(task.getTask());
+			writeAnswer(task, task.getTask());
+		} else {
+			target = "Answers";
+			for (int i = 0; i < task.getTaskCount(); i++) {
+				int taskNumber = task.getTask() + i;
+				content.writeInt(taskNumber);
+				int lengthIndex = content.position();
+				content.writeInt(0);
+				int start = content.position();
+				writeAnswer(task, taskNumber);
+				content.putInt(lengthIndex, content.position() - start);
+			}
+		}
+		ByteBuffer body = content.toByteBuffer();
+		byte[] header = ("POST " + target + " HTTP/1.1\r\nHost: " + host
+				+ "\r\nContent-Type: application/json\r\nContent-Length: " + body.remaining() + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer out = ByteBuffer.allocate(header.length + body.remaining());
+		out.put(header).put(body).flip();
+		client.task = task;
+		client.out = out;
+		client.sentAt = now;
+		send(client);
+	}
+
+	private void writeAnswer(Task task, int taskNumber) throws IOException {
+		JsonGenerator jg = JsonCodec.createGenerator(content);
+		jg.writeStartObject();
+		jg.writeStringField("JobId", String.valueOf(task.getJobId()));
+		jg.writeStringField("WorkerVersion", task.getWorkerVersion());
+		jg.writeStringField("WorkerURL", task.getWorkerURL());
+		jg.writeStringField("WorkerClassName", task.getWorkerClassName());
+		jg.writeStringField("Task", String.valueOf(taskNumber));
+		jg.writeStringField("ClientId", CLIENT_ID);
+		long start = System.nanoTime();
+		String answer = worker.compute(taskNumber);
+		jg.writeNumberField("ComputeNanos", System.nanoTime() - start);
+		jg.writeFieldName("Answer");
+		jg.writeRawValue(answer);
+		jg.writeEndObject();
+		jg.close();
+	}
+
+	private void report(double seconds) {
+		System.out.println();
+		System.out.printf("Clients: %d, duration: %.1fs%n", clients.length, seconds);
+		System.out.printf("Throughput: %.0f tasks/s dispatched, %.0f answers/s accepted%n", tasks / seconds,
+				answers / seconds);
+		System.out.println("GET Task latency:    " + quantiles(getLatency));
+		System.out.println("POST Answer latency: " + quantiles(postLatency));
+		long requests = getLatency.getCount() + postLatency.getCount();
+		System.out.printf("Requests: %d, no task: %d%n", requests, noTask);
+		System.out.printf("Errors: %d rejected (400), %d unavailable (503), %d other HTTP, %d connection (%.3f%%)%n",
+				rejected, unavailable, httpErrors, connectionErrors,
+				requests == 0 ? 0.0 : 100.0 * errors() / requests);
+	}
+
+	private static String quantiles(Histogram histogram) {
+		return String.format("p50 %.3fms  p99 %.3fms  p999 %.3fms  (%d requests)", histogram.getQuantile(0.5) / 1e6,
+				histogram.getQuantile(0.99) / 1e6, histogram.getQuantile(0.999) / 1e6, histogram.getCount());
+	}
+
+	private static void usage() {
+		System.out.println("LoadGenerator host port clients seconds [answerSize [thinkMillis [maxTasks]]]");
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		if (args.length < 4 || args.length > 7) {
+			usage();
+			return;
+		}
+		int answerSize = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+		int thinkMillis = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+		int maxTasks = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+		new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+				answerSize, thinkMillis, maxTasks).run();
+	}
+}
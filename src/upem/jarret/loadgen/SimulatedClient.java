@@ -0,0 +1,163 @@
+package upem.jarret.loadgen;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import upem.jarret.job.Task;
+
+/**
+ * State of a client simulated by the load generator: its connection, the
+ * request it is sending and the response it is reading.
+ */
+class SimulatedClient {
+	static final int DISCONNECTED = 0;
+	static final int CONNECTING = 1;
+	static final int SENDING = 2;
+	static final int RECEIVING = 3;
+	static final int THINKING = 4;
+
+	private static final int IN_BUFFER_SIZE = 1024;
+
+	final int id;
+	int state = DISCONNECTED;
+	SocketChannel sc;
+	SelectionKey key;
+	ByteBuffer out;
+	ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_SIZE);
+	// the batch whose answers are being posted, null while requesting a task
+	Task task;
+	long sentAt;
+	long wakeAt;
+
+	// response being read
+	private int headerEnd = -1;
+	private int status;
+	private int contentLength;
+	private boolean close;
+
+	SimulatedClient(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Tests if the in buffer holds the whole response, growing it if the
+	 * response does not fit
+	 *
+	 * @return
+	 */
+	boolean isResponseComplete() {
+		if (headerEnd < 0) {
+			int end = indexOfEndOfHeader();
+			if (end < 0) {
+				if (!in.hasRemaining()) {
+					grow(2 * in.capacity());
+				}
+				return false;
+			}
+			headerEnd = end;
+			parseHeader(new String(in.array(), 0, headerEnd, StandardCharsets.US_ASCII));
+		}
+		int size = headerEnd + contentLength;
+		if (in.capacity() < size) {
+			grow(size);
+		}
+		return in.position() >= size;
+	}
+
+	private int indexOfEndOfHeader() {
+		byte[] bytes = in.array();
+		for (int i = 3; i < in.position(); i++) {
+			if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private void parseHeader(String header) {
+		status = -1;
+		contentLength = 0;
+		close = false;
+		if (header.startsWith("HTTP/1.1 ") && header.length() >= 12) {
+			try {
+				status = Integer.parseInt(header.substring(9, 12));
+			} catch (NumberFormatException e) {
+				status = -1;
+			}
+		}
+		for (String line : header.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					contentLength = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					status = -1;
+				}
+			} else if (name.equalsIgnoreCase("Connection")) {
+				close = value.equalsIgnoreCase("close");
+			}
+		}
+		if (contentLength < 0) {
+			status = -1;
+		}
+	}
+
+	private void grow(int capacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		in.flip();
+		bigger.put(in);
+		in = bigger;
+	}
+
+	/**
+	 * Returns the status code of the complete response, -1 if it is malformed
+	 *
+	 * @return
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the content of the complete response
+	 *
+	 * @return
+	 */
+	ByteBuffer getContent() {
+		return ByteBuffer.wrap(in.array(), headerEnd, contentLength).slice();
+	}
+
+	boolean isClose() {
+		return close;
+	}
+
+	/**
+	 * Drops the complete response from the in buffer
+	 */
+	void responseRead() {
+		int size = headerEnd + contentLength;
+		in.flip();
+		in.position(size);
+		in.compact();
+		headerEnd = -1;
+	}
+
+	/**
+	 * Forgets the connection and what was read on it
+	 */
+	void disconnected() {
+		in.clear();
+		headerEnd = -1;
+		sc = null;
+		key = null;
+		task = null;
+		state = DISCONNECTED;
+	}
+}
@@ -0,0 +1,50 @@
+package upem.jarret.loadgen;
+
+import java.util.Arrays;
+
+import upem.jarret.worker.Worker;
+
+/**
+ * Worker answering every task at once with a JSON object of a fixed size, so
+ * that the load generator runs without downloading the workers of the jobs.
+ */
+public class StubWorker implements Worker {
+	private static final String PREFIX = "{\"Value\":\"";
+	private static final String SUFFIX = "\"}";
+
+	private final String answer;
+
+	/**
+	 * @param answerSize size of the answers, at least the size of an empty Value
+	 */
+	public StubWorker(int answerSize) {
+		char[] padding = new char[Math.max(0, answerSize - PREFIX.length() - SUFFIX.length())];
+		Arrays.fill(padding, 'x');
+		answer = PREFIX + new String(padding) + SUFFIX;
+	}
+
+	@Override
+	public String compute(int taskNumber) {
+		return answer;
+	}
+
+	@Override
+	public long getJobId() {
+		return 0;
+	}
+
+	@Override
+	public int getNumberOfTasks() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public String getVersion() {
+		return "stub";
+	}
+
+	@Override
+	public String getJobDescription() {
+		return "Answers every task with a JSON object of " + answer.length() + " bytes";
+	}
+}
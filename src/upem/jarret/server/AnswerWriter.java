@@ -0,0 +1,487 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.job.CompletionBitmap;
+import util.AsyncLogger;
+
+/**
+ * Background stage persisting the answers. The reactors only enqueue the
+ * answers, a single thread appends them by batches to the answer files, keeping
+ * one open FileChannel per job.
+ *
+ * Once the answers are written, and synced if the policy asks for it, their
+ * tasks are set in the completion bitmap of the job. A task is thus never
+ * marked as completed on the disk before its answer.
+ *
+ * When a file fails, it is truncated back to its last checkpoint and the
+ * tasks whose answers were not checkpointed are given to the LostAnswers
+ * handler, so they can be computed again. The next answer of the job reopens
+ * the file.
+ */
+public class AnswerWriter implements Runnable {
+	private static final int BATCH_SIZE = 4096;
+	private static final int FILE_BUFFER_SIZE = 64 * 1024;
+	private static final byte NEW_LINE = '\n';
+
+	/**
+	 * When the answer files are forced to the disk
+	 */
+	public enum FsyncPolicy {
+		/** let the OS decide */
+		NONE,
+		/** after each batch of answers */
+		BATCH,
+		/** at most once every fsyncIntervalMillis */
+		INTERVAL;
+
+		/**
+		 * Parses the policy as written in the config file
+		 *
+		 * @param policy
+		 * @return
+		 */
+		public static FsyncPolicy parse(String policy) {
+			return valueOf(policy.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Gets the tasks whose answers were accepted but could not be written
+	 */
+	@FunctionalInterface
+	public interface LostAnswers {
+		/**
+		 * Called by the writer thread
+		 *
+		 * @param jobId
+		 * @param tasks
+		 */
+		void lost(long jobId, int[] tasks);
+	}
+
+	private static class Answer {
+		private final long jobId;
+		private final int task;
+		private final byte[] content;
+
+		Answer(long jobId, int task, byte[] content) {
+			this.jobId = jobId;
+			this.task = task;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The current answer file of a job
+	 */
+	private class AnswerFile {
+		private final long jobId;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+		private final CompletionBitmap bitmap;
+		private FileChannel channel;
+		private int fileNumber;
+		private long size;
+		// size of the file at the last checkpoint, it is truncated back to it on failure
+		private long checkpointedSize;
+		private boolean unsynced = false;
+		// tasks written but not yet checkpointed
+		private int[] pendingTasks = new int[BATCH_SIZE];
+		private int nbPendingTasks = 0;
+
+		AnswerFile(long jobId) throws IOException {
+			this.jobId = jobId;
+			bitmap = bitmaps.get(jobId);
+			findLastFile();
+			open();
+		}
+
+		/**
+		 * Finds the first answer file of the job which has not reached the max
+		 * size, only done once when the job gets its first answer
+		 *
+		 * @throws IOException
+		 */
+		private void findLastFile() throws IOException {
+			fileNumber = 1;
+			while (true) {
+				Path path = path();
+				if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+					size = 0;
+					checkpointedSize = 0;
+					return;
+				}
+				size = Files.size(path);
+				if (size <= maxFileSize) {
+					checkpointedSize = size;
+					return;
+				}
+				fileNumber++;
+			}
+		}
+
+		private Path path() {
+			return Paths.get(answersPath + jobId + "_" + fileNumber);
+		}
+
+		private void open() throws IOException {
+			channel = FileChannel.open(path(), StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+					StandardOpenOption.CREATE);
+		}
+
+		/**
+		 * Appends the answer followed by a new line
+		 *
+		 * @param content
+		 * @throws IOException
+		 */
+		void append(byte[] content, int task) throws IOException {
+			if (size > maxFileSize) {
+				rotate();
+			}
+			if (nbPendingTasks == pendingTasks.length) {
+				pendingTasks = Arrays.copyOf(pendingTasks, nbPendingTasks * 2);
+			}
+			pendingTasks[nbPendingTasks++] = task;
+			if (buffer.remaining() < content.length + 1) {
+				flush();
+			}
+			if (buffer.remaining() < content.length + 1) {
+				ByteBuffer bb = ByteBuffer.allocate(content.length + 1);
+				bb.put(content).put(NEW_LINE).flip();
+				write(bb);
+			} else {
+				buffer.put(content).put(NEW_LINE);
+			}
+			size += content.length + 1;
+		}
+
+		/**
+		 * Writes the buffered answers into the channel
+		 *
+		 * @throws IOException
+		 */
+		void flush() throws IOException {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+		}
+
+		private void write(ByteBuffer bb) throws IOException {
+			if (!bb.hasRemaining()) {
+				return;
+			}
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+			unsynced = true;
+		}
+
+		/**
+		 * Forces the written answers to the disk
+		 *
+		 * @throws IOException
+		 */
+		void sync() throws IOException {
+			if (unsynced) {
+				channel.force(false);
+				unsynced = false;
+			}
+		}
+
+		/**
+		 * Makes the written answers durable according to the policy, then sets
+		 * their tasks in the completion bitmap
+		 *
+		 * @throws IOException
+		 */
+		void checkpoint() throws IOException {
+			if (fsyncPolicy != FsyncPolicy.NONE) {
+				sync();
+			}
+			checkpointedSize = size;
+			if (nbPendingTasks == 0) {
+				return;
+			}
+			int nbTasks = nbPendingTasks;
+			nbPendingTasks = 0;
+			if (bitmap == null) {
+				return;
+			}
+			for (int i = 0; i < nbTasks; i++) {
+				if (pendingTasks[i] >= 0 && pendingTasks[i] < bitmap.getTaskNumber()) {
+					bitmap.set(pendingTasks[i]);
+				}
+			}
+			if (fsyncPolicy != FsyncPolicy.NONE) {
+				bitmap.force();
+			}
+		}
+
+		/**
+		 * Drops what was written since the last checkpoint and closes the
+		 * file after an I/O error
+		 *
+		 * @return the tasks whose answers were dropped
+		 */
+		int[] fail() {
+			int[] tasks = Arrays.copyOf(pendingTasks, nbPendingTasks);
+			nbPendingTasks = 0;
+			buffer.clear();
+			try {
+				channel.truncate(checkpointedSize);
+			} catch (IOException e) {
+				// the answers of the tasks given back may stay in the file
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing more can be done with this file
+			}
+			return tasks;
+		}
+
+		/**
+		 * Closes the current file and opens the next one
+		 *
+		 * @throws IOException
+		 */
+		private void rotate() throws IOException {
+			close();
+			fileNumber++;
+			size = 0;
+			checkpointedSize = 0;
+			open();
+		}
+
+		void close() throws IOException {
+			flush();
+			checkpoint();
+			channel.close();
+		}
+	}
+
+	private final String answersPath;
+	private final long maxFileSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalNanos;
+	private final AsyncLogger logger;
+	private final ArrayBlockingQueue<Answer> queue;
+	private final HashMap<Long, AnswerFile> files = new HashMap<>();
+	private final ConcurrentHashMap<Long, CompletionBitmap> bitmaps = new ConcurrentHashMap<>();
+	private final ArrayList<Answer> batch = new ArrayList<>(BATCH_SIZE);
+	// files the batch appended to, in the order of their first answer
+	private final LinkedHashSet<AnswerFile> touched = new LinkedHashSet<>();
+	private final Thread thread = new Thread(this, "answer-writer");
+
+	private volatile boolean closed = false;
+	private long lastSync = System.nanoTime();
+	private LostAnswers lostAnswers;
+
+	public AnswerWriter(String answersPath, long maxFileSize, int queueSize, FsyncPolicy fsyncPolicy,
+			long fsyncIntervalMillis, AsyncLogger logger) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("The answers queue needs at least one slot");
+		}
+		this.answersPath = Objects.requireNonNull(answersPath);
+		this.maxFileSize = maxFileSize;
+		this.fsyncPolicy = Objects.requireNonNull(fsyncPolicy);
+		this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+		this.logger = Objects.requireNonNull(logger);
+		queue = new ArrayBlockingQueue<>(queueSize);
+	}
+
+	/**
+	 * Starts the writer thread
+	 *
+	 * @param lostAnswers gets the tasks whose answers could not be written
+	 */
+	public void start(LostAnswers lostAnswers) {
+		this.lostAnswers = Objects.requireNonNull(lostAnswers);
+		thread.start();
+	}
+
+	/**
+	 * Maps the completion bitmap of the job from the answers directory, or
+	 * returns the one already mapped. Its bits are set by the writer thread
+	 * once the answers are written.
+	 *
+	 * @param jobId
+	 * @param taskNumber
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized CompletionBitmap openCompletionBitmap(long jobId, int taskNumber) throws IOException {
+		CompletionBitmap bitmap = bitmaps.get(jobId);
+		if (bitmap == null) {
+			bitmap = CompletionBitmap.open(Paths.get(answersPath + jobId + ".done"), taskNumber);
+			bitmaps.put(jobId, bitmap);
+		} else if (bitmap.getTaskNumber() != taskNumber) {
+			throw new IllegalArgumentException("Job " + jobId + " already has a bitmap of "
+					+ bitmap.getTaskNumber() + " tasks");
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Enqueues an answer, never blocks
+	 *
+	 * @param jobId
+	 * @param task
+	 * @param content the answer without the trailing new line
+	 * @return false if the queue is full or the writer closed
+	 */
+	public boolean submit(long jobId, int task, byte[] content) {
+		if (closed) {
+			return false;
+		}
+		return queue.offer(new Answer(jobId, task, Objects.requireNonNull(content)));
+	}
+
+	/**
+	 * Returns the number of answers waiting to be written
+	 *
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Writes the pending answers, closes the files and stops the thread
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		thread.join();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			Answer first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (first != null) {
+				batch.add(first);
+				queue.drainTo(batch, BATCH_SIZE - 1);
+				writeBatch();
+			}
+			if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+				syncIfDue();
+			}
+		}
+		while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+			writeBatch();
+		}
+		closeFiles();
+	}
+
+	/**
+	 * Appends the answers of the batch and flushes the files they touched
+	 */
+	private void writeBatch() {
+		for (Answer answer : batch) {
+			AnswerFile file = files.get(answer.jobId);
+			try {
+				if (file == null) {
+					file = new AnswerFile(answer.jobId);
+					files.put(answer.jobId, file);
+				}
+				file.append(answer.content, answer.task);
+				touched.add(file);
+			} catch (IOException e) {
+				if (file == null) {
+					lost(answer.jobId, new int[] { answer.task }, e);
+				} else {
+					touched.remove(file);
+					fail(file, e);
+				}
+			}
+		}
+		batch.clear();
+
+		for (AnswerFile file : touched) {
+			try {
+				file.flush();
+				if (fsyncPolicy != FsyncPolicy.INTERVAL) {
+					file.checkpoint();
+				}
+			} catch (IOException e) {
+				fail(file, e);
+			}
+		}
+		touched.clear();
+	}
+
+	/**
+	 * Forces the files to the disk if the last sync is older than the interval
+	 */
+	private void syncIfDue() {
+		long now = System.nanoTime();
+		if (now - lastSync < fsyncIntervalNanos) {
+			return;
+		}
+		for (AnswerFile file : new ArrayList<>(files.values())) {
+			try {
+				file.checkpoint();
+			} catch (IOException e) {
+				fail(file, e);
+			}
+		}
+		lastSync = now;
+	}
+
+	/**
+	 * Drops the file after an I/O error, the next answer of its job opens it
+	 * again
+	 */
+	private void fail(AnswerFile file, IOException e) {
+		files.remove(file.jobId);
+		lost(file.jobId, file.fail(), e);
+	}
+
+	private void lost(long jobId, int[] tasks, IOException e) {
+		logger.error("Answers of job " + jobId + " not written, " + tasks.length + " tasks given back: " + e);
+		if (tasks.length > 0) {
+			lostAnswers.lost(jobId, tasks);
+		}
+	}
+
+	private void closeFiles() {
+		for (AnswerFile file : new ArrayList<>(files.values())) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				fail(file, e);
+			}
+		}
+		files.clear();
+		for (CompletionBitmap bitmap : bitmaps.values()) {
+			try {
+				bitmap.close();
+			} catch (IOException e) {
+				logger.error("Completion bitmap not closed: " + e);
+			}
+		}
+	}
+}
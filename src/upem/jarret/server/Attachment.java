@@ -1,25 +1,54 @@
 package upem.jarret.server;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 
-import upem.jarret.http.HTTPReaderServer;
+import upem.jarret.http.HTTPRequestParser;
+import util.BufferPool;
+import util.TimerWheel.Timer;
 
 public class Attachment {
-	private HTTPReaderServer reader;
+	private static final int IN_BUFFER_SIZE = 4096;
+
+	private final BufferPool pool;
+	private final HTTPRequestParser parser;
 	private boolean requestingTask = false;
+	private boolean requestingMetrics = false;
+	private boolean requestingCosts = false;
+	// a parked GET Task waits for a task until this value of System.nanoTime()
+	private boolean parked = false;
+	private long parkedUntil;
+	// the key is in the queue of the parked requests of the reactor, parked or not
+	private boolean queued = false;
+	// time spent parsing the request being read
+	private long parseNanos = 0;
 	private boolean sendingPost = false;
-	private boolean readingRequest = true;
-	private boolean parsingRequest = false;
-	private boolean readingAnswer = false;
-	private String request = null;
-	private String answer = null;
-	private final ByteBuffer in;
-	private int contentLength;
+	private boolean answerQueued = false;
+	private int answersCode = 0;
+	// tasks of the batch whose answers were invalid, null if there is none
+	private int[] rejectedTasks = null;
+	private int maxTasks = 1;
+	// hash of the worker the client loaded, 0 if it named none
+	private long worker = 0;
+	private boolean closing = false;
+	private long lastActivity = System.nanoTime();
+	// when the first bytes of the request being read arrived, -1 between requests
+	private long requestStartedAt = -1;
+	private Timer timer;
+	private boolean answerValid = false;
+	// borrowed from the pool while there are bytes of a request to parse
+	private ByteBuffer in = null;
+	// bytes of the response the socket did not accept yet
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
 
-	public Attachment(SocketChannel sc) {
-		in = ByteBuffer.allocate(1024);
-		reader = new HTTPReaderServer(sc, ByteBuffer.allocate(50), in);
+	/**
+	 * @param pool pool of the buffers of the connection, owned by its reactor
+	 */
+	public Attachment(BufferPool pool) {
+		this.pool = pool;
+		parser = new HTTPRequestParser(pool);
 	}
 
 	/**
@@ -47,15 +76,129 @@ public class Attachment {
 	}
 
 	/**
-	 * Set answer with the value of answer
+	 * Records that the GET Task request waits for a task, the next requests
+	 * are not parsed before it is answered
+	 * 
+	 * @param deadline value of System.nanoTime() when the client is told to
+	 *            come back later
+	 */
+	void park(long deadline) {
+		parked = true;
+		parkedUntil = deadline;
+	}
+
+	void unpark() {
+		parked = false;
+	}
+
+	boolean isParked() {
+		return parked;
+	}
+
+	long getParkedUntil() {
+		return parkedUntil;
+	}
+
+	boolean isQueued() {
+		return queued;
+	}
+
+	void setQueued(boolean queued) {
+		this.queued = queued;
+	}
+
+	/**
+	 * Set requestingMetrics to true
+	 */
+	void requestMetrics() {
+		requestingMetrics = true;
+	}
+
+	boolean isRequestingMetrics() {
+		return requestingMetrics;
+	}
+
+	void setRequestingMetrics(boolean requestingMetrics) {
+		this.requestingMetrics = requestingMetrics;
+	}
+
+	/**
+	 * Set requestingCosts to true
+	 */
+	void requestCosts() {
+		requestingCosts = true;
+	}
+
+	boolean isRequestingCosts() {
+		return requestingCosts;
+	}
+
+	void setRequestingCosts(boolean requestingCosts) {
+		this.requestingCosts = requestingCosts;
+	}
+
+	/**
+	 * Adds the time of a call to the parser
 	 * 
-	 * @param answer
+	 * @param nanos
 	 */
-	public void requestAnswer(String answer) {
-		this.setAnswer(answer);
+	void addParseNanos(long nanos) {
+		parseNanos += nanos;
+	}
+
+	/**
+	 * Returns the time spent parsing the request and starts counting for the
+	 * next one
+	 * 
+	 * @return
+	 */
+	long takeParseNanos() {
+		long nanos = parseNanos;
+		parseNanos = 0;
+		return nanos;
+	}
+
+	/**
+	 * Records the verdict of the validation of the answer posted
+	 * 
+	 * @param valid
+	 */
+	public void requestAnswer(boolean valid) {
+		answerValid = valid;
+		setSendingPost(true);
+	}
+
+	/**
+	 * Records the HTTP code to reply to a batch of answers
+	 * 
+	 * @param code
+	 * @param rejectedTasks the tasks whose answers were invalid, or null
+	 */
+	public void requestAnswers(int code, int[] rejectedTasks) {
+		answersCode = code;
+		this.rejectedTasks = rejectedTasks;
 		setSendingPost(true);
 	}
 
+	/**
+	 * Returns the tasks of the batch whose answers were invalid
+	 * 
+	 * @return the tasks, null if all the answers were valid
+	 */
+	int[] getRejectedTasks() {
+		return rejectedTasks;
+	}
+
+	/**
+	 * Returns the HTTP code to reply to a batch of answers, 0 if the request
+	 * was a single answer
+	 * 
+	 * @return
+	 */
+	public int getAnswersCode() {
+		return answersCode;
+	}
+
 	/**
 	 * Returns the value of sendingPost
 	 * 
@@ -75,85 +218,230 @@ public class Attachment {
 	}
 
 	/**
-	 * Returns the reader
+	 * Returns the parser of the requests of the connection
 	 * 
 	 * @return
 	 */
-	public HTTPReaderServer getReader() {
-		return reader;
+	public HTTPRequestParser getParser() {
+		return parser;
 	}
 
 	/**
-	 * Returns the answer
+	 * Returns true if the answer posted was valid
 	 * 
 	 * @return
 	 */
-	public String getAnswer() {
-		return answer;
+	public boolean isAnswerValid() {
+		return answerValid;
+	}
+
+	/**
+	 * Set sendingPost to false once the response is sent. The bytes of the
+	 * pipelined requests stay in the in buffer.
+	 */
+	public void clean() {
+		setSendingPost(false);
+		answerQueued = false;
+		answerValid = false;
+		answersCode = 0;
+		rejectedTasks = null;
 	}
 
 	/**
-	 * Set the value of answer
+	 * Records that something was read or written on the connection
+	 */
+	public void touch() {
+		lastActivity = System.nanoTime();
+	}
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Records that bytes of a request arrived, the first time since the last
+	 * request was read
 	 * 
-	 * @param answer
+	 * @param now value of System.nanoTime()
 	 */
-	private void setAnswer(String answer) {
-		this.answer = answer;
+	void requestStarted(long now) {
+		if (requestStartedAt == -1) {
+			requestStartedAt = now;
+		}
 	}
 
 	/**
-	 * Set sendingPost to false and create a new HTTPReader for the next task
+	 * Records that no request is being read
+	 */
+	void requestRead() {
+		requestStartedAt = -1;
+	}
+
+	/**
+	 * Returns when the first bytes of the request being read arrived
 	 * 
-	 * @param sc the SocketChannel used by the HTTPReader
+	 * @return the value of System.nanoTime(), -1 if no request is being read
 	 */
-	public void clean(SocketChannel sc) {
-		setSendingPost(false);
-		in.clear();
-		reader = new HTTPReaderServer(sc, ByteBuffer.allocate(50), in);
+	long getRequestStartedAt() {
+		return requestStartedAt;
+	}
+
+	/**
+	 * Returns the timer of the deadlines of the connection, owned by its
+	 * reactor
+	 * 
+	 * @return
+	 */
+	Timer getTimer() {
+		return timer;
 	}
 
+	void setTimer(Timer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Returns true if the client asked to close the connection after the
+	 * response
+	 * 
+	 * @return
+	 */
+	public boolean isClosing() {
+		return closing;
+	}
+
+	public void setClosing(boolean closing) {
+		this.closing = closing;
+	}
+
+	/**
+	 * Returns the buffer the requests are read into, borrowing it if needed
+	 * 
+	 * @return
+	 */
 	public ByteBuffer getIn() {
+		if (in == null) {
+			in = pool.acquire(IN_BUFFER_SIZE);
+		}
 		return in;
 	}
-	
-	public boolean isReadingRequest() {
-		return readingRequest;
+
+	/**
+	 * Returns true if bytes read are not parsed yet
+	 * 
+	 * @return
+	 */
+	boolean hasPendingInput() {
+		return in != null && in.position() != 0;
+	}
+
+	/**
+	 * Gives the in buffer back to the pool when every byte read was parsed, an
+	 * idle connection holds no buffer
+	 */
+	void releaseIdleBuffers() {
+		if (in != null && in.position() == 0) {
+			pool.release(in);
+			in = null;
+		}
 	}
 
-	public void setReadingRequest(boolean b) {
-		readingRequest = b;
+	/**
+	 * Gives all the buffers back to the pool, the connection is closed
+	 */
+	void release() {
+		if (in != null) {
+			pool.release(in);
+			in = null;
+		}
+		parser.reset();
+		ByteBuffer bb;
+		while ((bb = outbound.poll()) != null) {
+			pool.release(bb);
+		}
 	}
 
-	public String getRequest() {
-		return request;
+	/**
+	 * Copies the remaining bytes of the buffer at the end of the outbound
+	 * queue, the buffer can then be reused
+	 * 
+	 * @param bb a buffer in read-mode
+	 */
+	void queue(ByteBuffer bb) {
+		ByteBuffer copy = pool.acquire(bb.remaining());
+		copy.put(bb);
+		copy.flip();
+		outbound.add(copy);
 	}
-	
-	public void setRequest(String request) {
-		this.request = request;
+
+	/**
+	 * Returns true if part of the response is still to be written
+	 * 
+	 * @return
+	 */
+	boolean hasOutbound() {
+		return !outbound.isEmpty();
 	}
 
-	public boolean isParsingRequest() {
-		return parsingRequest;
+	/**
+	 * Writes the outbound queue until the socket does not accept more bytes
+	 * 
+	 * @param sc
+	 * @return true if the whole queue was written
+	 * @throws IOException
+	 */
+	boolean flush(SocketChannel sc) throws IOException {
+		ByteBuffer bb;
+		while ((bb = outbound.peek()) != null) {
+			sc.write(bb);
+			if (bb.hasRemaining()) {
+				return false;
+			}
+			pool.release(outbound.poll());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the answer was handed to the answer writer
+	 * 
+	 * @return
+	 */
+	public boolean isAnswerQueued() {
+		return answerQueued;
 	}
 
-	public void setParsingRequest(boolean b) {
-		parsingRequest = b;
+	public void setAnswerQueued(boolean b) {
+		answerQueued = b;
 	}
 
-	public boolean isReadingAnswer() {
-		return readingAnswer;
+	/**
+	 * Returns the number of tasks the client accepts in a batch
+	 * 
+	 * @return
+	 */
+	public int getMaxTasks() {
+		return maxTasks;
 	}
 
-	public void setReadingAnswer(boolean b) {
-		this.readingAnswer = b;
+	/**
+	 * Returns the hash of the worker the client asking for a task loaded
+	 * 
+	 * @return the hash or 0 if the client named none
+	 */
+	long getWorker() {
+		return worker;
 	}
 
-	public int getContentLength() {
-		return contentLength;
+	void setWorker(long worker) {
+		this.worker = worker;
 	}
 
-	public void setContentLength(int length) {
-		contentLength = length;
+	public void setMaxTasks(int maxTasks) {
+		if (maxTasks < 1) {
+			throw new IllegalArgumentException("Max-Tasks must be positive");
+		}
+		this.maxTasks = maxTasks;
 	}
 
 }
@@ -0,0 +1,230 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.job.Job;
+import util.Histogram;
+import util.Metrics;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Streaming cost model of a job, in constant memory, from the compute times
+ * the clients report with their answers: an EWMA and a histogram of the time
+ * of a task, and an EWMA per client for about the MAX_CLIENTS clients heard
+ * from last. The throughput is the rate of first answers averaged over about
+ * RATE_WINDOW, from which the time left to complete the job is estimated.
+ *
+ * The compute times are recorded in STRIPES stripes chosen by client, each
+ * with its own lock, EWMA and clients, so the answers of different clients do
+ * not contend. The EWMA of the job is the one of the stripes weighted by their
+ * samples.
+ */
+class JobCosts {
+	private static final double ALPHA = 0.05;
+	private static final long RATE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final int MAX_CLIENTS = 256;
+	private static final int STRIPES = 16;
+
+	private static class ClientCost {
+		private long tasks;
+		private double ewmaNanos;
+	}
+
+	private static class Stripe {
+		private long reported = 0;
+		private double ewmaNanos = 0;
+		// least recently heard from first
+		private final LinkedHashMap<String, ClientCost> clients = new LinkedHashMap<String, ClientCost>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ClientCost> eldest) {
+				return size() > MAX_CLIENTS / STRIPES;
+			}
+		};
+
+		synchronized void computed(String clientId, long nanos) {
+			ewmaNanos = reported++ == 0 ? nanos : ewmaNanos + ALPHA * (nanos - ewmaNanos);
+			if (clientId == null) {
+				return;
+			}
+			ClientCost client = clients.get(clientId);
+			if (client == null) {
+				client = new ClientCost();
+				clients.put(clientId, client);
+			}
+			client.ewmaNanos = client.tasks++ == 0 ? nanos : client.ewmaNanos + ALPHA * (nanos - client.ewmaNanos);
+		}
+	}
+
+	private final Job job;
+	private final Histogram computeTime;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	// first answers counted with a weight decaying exponentially with their age
+	private double decayedCompletions = 0;
+	private long firstCompletion;
+	private long lastCompletion;
+
+	JobCosts(Metrics metrics, Job job) {
+		this.job = job;
+		computeTime = metrics.histogram("jarret_task_compute_seconds", "Compute time of a task reported by the clients",
+				"job", job.getJobId());
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Records the time a client reported for a task, whether its answer was
+	 * the first or not
+	 *
+	 * @param clientId the client, or null if it did not give its id
+	 * @param nanos
+	 */
+	void computed(String clientId, long nanos) {
+		computeTime.record(nanos);
+		// the answers without a client id are spread by thread
+		int hash = clientId == null ? Long.hashCode(Thread.currentThread().getId()) : clientId.hashCode();
+		stripes[(hash ^ hash >>> 16) & (STRIPES - 1)].computed(clientId, nanos);
+	}
+
+	/**
+	 * Records the first answer of a task
+	 *
+	 * @param now value of System.nanoTime()
+	 */
+	synchronized void completed(long now) {
+		if (decayedCompletions == 0) {
+			firstCompletion = now;
+		} else {
+			decayedCompletions *= decay(now - lastCompletion);
+		}
+		decayedCompletions++;
+		lastCompletion = now;
+	}
+
+	private static double decay(long elapsed) {
+		return Math.exp(-(double) elapsed / RATE_WINDOW_NANOS);
+	}
+
+	/**
+	 * Returns the number of tasks completed per second lately. The window is
+	 * shortened to the time since the first answer, so the rate is right from
+	 * the start.
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return
+	 */
+	synchronized double getThroughput(long now) {
+		long elapsed = now - firstCompletion;
+		if (decayedCompletions == 0 || elapsed <= 0) {
+			return 0;
+		}
+		double window = RATE_WINDOW_NANOS * (1 - decay(elapsed));
+		return decayedCompletions * decay(now - lastCompletion) / window * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Returns the time left to complete the job at the current throughput
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return the time in seconds, -1 if nothing is completed lately
+	 */
+	double getEtaSeconds(long now) {
+		double throughput = getThroughput(now);
+		if (throughput == 0) {
+			return job.getCompletedTasks() == job.getTaskNumber() ? 0 : -1;
+		}
+		return (job.getTaskNumber() - job.getCompletedTasks()) / throughput;
+	}
+
+	/**
+	 * Returns the average compute time of a task, weighted towards the last
+	 * ones
+	 *
+	 * @return the time in nanoseconds, 0 if no client reported any
+	 */
+	double getEwmaNanos() {
+		long reported = 0;
+		double sum = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				reported += stripe.reported;
+				sum += stripe.reported * stripe.ewmaNanos;
+			}
+		}
+		return reported == 0 ? 0 : sum / reported;
+	}
+
+	/**
+	 * Writes the model as a JSON object, the estimates which are not known yet
+	 * are null
+	 *
+	 * @param jg
+	 * @param now value of System.nanoTime()
+	 * @throws IOException
+	 */
+	void write(JsonGenerator jg, long now) throws IOException {
+		int completed = job.getCompletedTasks();
+		double throughput = getThroughput(now);
+		jg.writeStartObject();
+		jg.writeStringField("JobId", job.getJobId());
+		jg.writeNumberField("Tasks", job.getTaskNumber());
+		jg.writeNumberField("Completed", completed);
+		jg.writeNumberField("TasksPerSecond", throughput);
+		double eta = getEtaSeconds(now);
+		if (eta < 0) {
+			jg.writeNullField("EtaSeconds");
+		} else {
+			jg.writeNumberField("EtaSeconds", eta);
+		}
+		jg.writeObjectFieldStart("ComputeNanos");
+		jg.writeNumberField("Count", computeTime.getCount());
+		jg.writeNumberField("Ewma", (long) getEwmaNanos());
+		jg.writeNumberField("P50", computeTime.getQuantile(0.5));
+		jg.writeNumberField("P90", computeTime.getQuantile(0.9));
+		jg.writeNumberField("P99", computeTime.getQuantile(0.99));
+		jg.writeEndObject();
+		// the work left, to size the clients needed to complete the job in time
+		double ewmaNanos = getEwmaNanos();
+		if (ewmaNanos == 0) {
+			jg.writeNullField("RemainingComputeSeconds");
+		} else {
+			jg.writeNumberField("RemainingComputeSeconds",
+					(job.getTaskNumber() - completed) * ewmaNanos / TimeUnit.SECONDS.toNanos(1));
+		}
+		jg.writeArrayFieldStart("Clients");
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Map.Entry<String, ClientCost> entry : stripe.clients.entrySet()) {
+					jg.writeStartObject();
+					jg.writeStringField("ClientId", entry.getKey());
+					jg.writeNumberField("Tasks", entry.getValue().tasks);
+					jg.writeNumberField("EwmaNanos", (long) entry.getValue().ewmaNanos);
+					jg.writeEndObject();
+				}
+			}
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+	}
+
+	/**
+	 * Returns a line summing up the model for the console
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return
+	 */
+	String summary(long now) {
+		double eta = getEtaSeconds(now);
+		return String.format("Job %s: %d/%d tasks, %.1f tasks/s, ETA %s, compute ewma %.3fms p50 %.3fms p99 %.3fms",
+				job.getJobId(), job.getCompletedTasks(), job.getTaskNumber(), getThroughput(now),
+				eta < 0 ? "unknown" : String.format("%.0fs", eta), getEwmaNanos() / 1e6,
+				computeTime.getQuantile(0.5) / 1e6, computeTime.getQuantile(0.99) / 1e6);
+	}
+}
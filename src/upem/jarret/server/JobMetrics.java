@@ -0,0 +1,86 @@
+package upem.jarret.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.Metrics;
+
+/**
+ * Counters of a job, and the last dispatch time of each of its tasks to
+ * measure the time their answers take. The times are kept in an array of one
+ * long per task, allocated with the job, so recording them takes no lock and
+ * allocates nothing.
+ */
+class JobMetrics {
+	private final LongAdder dispatched;
+	private final LongAdder accepted;
+	private final LongAdder rejected;
+	private final LongAdder speculated;
+	private final LongAdder dropped;
+	// time of the last dispatch of each task from origin plus one, 0 if it was not dispatched
+	private final AtomicLongArray dispatchedAt;
+	private final long origin = System.nanoTime();
+
+	JobMetrics(Metrics metrics, String jobId, int taskNumber) {
+		dispatched = metrics.counter("jarret_tasks_dispatched_total", "Tasks given to the clients", "job", jobId);
+		accepted = metrics.counter("jarret_answers_accepted_total", "Answers queued to be written", "job", jobId);
+		rejected = metrics.counter("jarret_answers_rejected_total", "Answers refused as invalid", "job", jobId);
+		speculated = metrics.counter("jarret_tasks_speculated_total",
+				"Copies of outstanding tasks given in the tail of the job", "job", jobId);
+		dropped = metrics.counter("jarret_answers_dropped_total",
+				"Answers dropped because their task was already completed", "job", jobId);
+		dispatchedAt = new AtomicLongArray(taskNumber);
+	}
+
+	/**
+	 * Records the dispatch of the batch of count tasks starting at task
+	 * 
+	 * @param task
+	 * @param count
+	 * @param now value of System.nanoTime()
+	 */
+	void dispatched(int task, int count, long now) {
+		dispatched.add(count);
+		long at = now - origin + 1;
+		int end = Math.min(task + count, dispatchedAt.length());
+		for (int i = Math.max(task, 0); i < end; i++) {
+			dispatchedAt.lazySet(i, at);
+		}
+	}
+
+	/**
+	 * Records the first answer of a task
+	 * 
+	 * @param task
+	 * @return the time the task was last dispatched at, or -1 if it is unknown
+	 */
+	long answered(int task) {
+		if (task < 0 || task >= dispatchedAt.length()) {
+			return -1;
+		}
+		long at = dispatchedAt.getAndSet(task, 0);
+		return at == 0 ? -1 : at - 1 + origin;
+	}
+
+	void accepted() {
+		accepted.increment();
+	}
+
+	void rejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Records copies of tasks given again, their answers are measured from the
+	 * first dispatch
+	 * 
+	 * @param count
+	 */
+	void speculated(int count) {
+		speculated.add(count);
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+}
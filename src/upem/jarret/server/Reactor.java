@@ -0,0 +1,940 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import upem.jarret.http.HTTPRequestParser;
+import upem.jarret.job.AnswerValidator;
+import upem.jarret.job.Task;
+import util.AsyncLogger;
+import util.AsyncLogger.Level;
+import util.BufferPool;
+import util.Histogram;
+import util.TimerWheel;
+import util.TimerWheel.Timer;
+
+/**
+ * I/O thread owning its own Selector. The acceptor of the Server hands it the
+ * accepted SocketChannels, the reactor then handles all the requests of these
+ * clients.
+ */
+public class Reactor implements Runnable {
+	private static final String HTTP_1_1_200_OK = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+	// the answers queue drains in well under a second, the client backs off from there
+	private static final String HTTP_1_1_503_SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n\r\n";
+	private static final String HTTP_1_1_400_CLOSE = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+	private static final String HTTP_1_1_408_CLOSE = "HTTP/1.1 408 Request Timeout\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+	private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int MIN_BUFFER_SIZE = 1024;
+	private static final int MAX_BUFFER_SIZE = 64 * 1024;
+	private static final int MIN_PARKED_COMPACTION = 64;
+	private static final String METRICS_HEADER = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: ";
+	private static final String JSON_HEADER = "HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=utf-8\r\nContent-Length: ";
+	private static final String CONNECTION_CLOSE = "Connection: close\r\n";
+
+	private final Server server;
+	private final AsyncLogger logger;
+	private final Selector selector;
+	private final Set<SelectionKey> selectedKeys;
+	private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private final long idleTimeoutNanos;
+	private final long requestTimeoutNanos;
+	private final long longPollNanos;
+	// deadlines of the connections and of the next lease expiry
+	private final TimerWheel timers = new TimerWheel(TIMER_TICK_NANOS, System.nanoTime());
+	private final Timer leaseTimer = new Timer(this);
+	// GET Task requests waiting for a task, in arrival order. The keys whose
+	// request was answered or closed stay there until they are drained or
+	// compacted, a key parked again keeps its place.
+	private final ArrayDeque<SelectionKey> parked = new ArrayDeque<>();
+	private int compactParkedAt = MIN_PARKED_COMPACTION;
+	private volatile boolean tasksAvailable = false;
+	// the response to GET Task is encoded in these buffers and sent with one gathering write
+	private final ByteBuffer responseHeader = ByteBuffer.allocateDirect(TaskResponse.MAX_HEADER_SIZE);
+	private ByteBuffer responseBody = ByteBuffer.allocateDirect(1024);
+	private final ByteBuffer[] response = { responseHeader, responseBody };
+	// constant responses, encoded once
+	private final ByteBuffer noTask;
+	private final ByteBuffer ok = encode(HTTP_1_1_200_OK);
+	private final ByteBuffer serviceUnavailable = encode(HTTP_1_1_503_SERVICE_UNAVAILABLE);
+	private final ByteBuffer badRequest = encode(Server.badRequest);
+	// the same responses closing the connection, sent once the server is shutting down
+	private final ByteBuffer noTaskClose;
+	private final ByteBuffer okClose = encode(closing(HTTP_1_1_200_OK));
+	private final ByteBuffer serviceUnavailableClose = encode(closing(HTTP_1_1_503_SERVICE_UNAVAILABLE));
+	private final ByteBuffer badRequestClose = encode(HTTP_1_1_400_CLOSE);
+	private final ByteBuffer requestTimeoutClose = encode(HTTP_1_1_408_CLOSE);
+	private final BufferPool bufferPool;
+	private final AnswerValidator answerValidator = new AnswerValidator();
+	// shared by the reactors
+	private final Histogram parseTime;
+	private final Histogram loopTime;
+
+	private volatile boolean shutdownNow = false;
+
+	Reactor(Server server, int id) throws IOException {
+		this.server = Objects.requireNonNull(server);
+		logger = server.getLogger();
+		idleTimeoutNanos = server.getIdleTimeoutNanos();
+		requestTimeoutNanos = server.getRequestTimeoutNanos();
+		longPollNanos = server.getLongPollNanos();
+		noTask = encode(noTask(server.getComeBackInSeconds()));
+		noTaskClose = encode(closing(noTask(server.getComeBackInSeconds())));
+		bufferPool = new BufferPool(MIN_BUFFER_SIZE, MAX_BUFFER_SIZE, server.getBufferPoolBytes());
+		parseTime = server.getMetrics().histogram("jarret_request_parse_seconds", "Time spent parsing a request");
+		loopTime = server.getMetrics().histogram("jarret_selector_loop_seconds",
+				"Time a reactor takes to handle what a selection returned");
+		selector = Selector.open();
+		selectedKeys = selector.selectedKeys();
+		thread = new Thread(this, "reactor-" + id);
+	}
+
+	/**
+	 * Returns the response sent when no job has a task to give
+	 */
+	private static String noTask(int comeBackInSeconds) {
+		String json = "{\"ComeBackInSeconds\":" + comeBackInSeconds + "}";
+		return "HTTP/1.1 200 OK\r\n" + "Content-Type: application/json; charset=utf-8\r\n" + "Content-Length: "
+				+ json.getBytes(Server.charsetUTF8).length + "\r\n\r\n" + json;
+	}
+
+	/**
+	 * Adds Connection: close to the header of the response
+	 */
+	private static String closing(String response) {
+		int endOfHeader = response.indexOf("\r\n\r\n") + 2;
+		return response.substring(0, endOfHeader) + CONNECTION_CLOSE + response.substring(endOfHeader);
+	}
+
+	private static ByteBuffer encode(String response) {
+		byte[] bytes = response.getBytes(Server.charsetUTF8);
+		ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length);
+		bb.put(bytes).flip();
+		return bb;
+	}
+
+	/**
+	 * Starts the thread of the reactor
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Waits for the thread of the reactor to finish
+	 *
+	 * @throws InterruptedException
+	 */
+	void join() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * Hands an accepted channel to this reactor. The channel is registered by
+	 * the thread of the reactor.
+	 *
+	 * @param sc
+	 */
+	void register(SocketChannel sc) {
+		pendingChannels.add(sc);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to close all its keys
+	 */
+	void shutdownNow() {
+		shutdownNow = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the pool of the buffers of the connections of this reactor
+	 *
+	 * @return
+	 */
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Tells the reactor that tasks may be available for the parked GET Task
+	 * requests
+	 */
+	void tasksAvailable() {
+		tasksAvailable = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Wakes the reactor up, used when the server is shutting down
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!selector.keys().isEmpty() || !pendingChannels.isEmpty() || !server.isShutdown()) {
+				selector.select(selectTimeoutMillis());
+				long start = System.nanoTime();
+				registerPendingChannels();
+				processSelectedKeys();
+				selectedKeys.clear();
+				timers.advance(System.nanoTime(), this::timerExpired);
+				if (tasksAvailable || server.isShutdown()) {
+					releaseParked();
+				}
+				if (server.isShutdown()) {
+					closeIdleConnections();
+				}
+				if (shutdownNow) {
+					closeAll();
+				}
+				loopTime.record(System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				//
+			}
+		}
+	}
+
+	/**
+	 * Registers the channels accepted since the last selection
+	 *
+	 * @throws IOException
+	 */
+	private void registerPendingChannels() throws IOException {
+		SocketChannel sc;
+		while ((sc = pendingChannels.poll()) != null) {
+			try {
+				sc.configureBlocking(false);
+				// the responses are written in several parts on persistent connections
+				sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Attachment attachment = new Attachment(bufferPool);
+				SelectionKey key = sc.register(selector, SelectionKey.OP_READ, attachment);
+				attachment.setTimer(new Timer(key));
+				scheduleTimer(key);
+			} catch (ClosedChannelException e) {
+				server.clientDisconnected();
+			}
+		}
+	}
+
+	/**
+	 * Returns how long the selection may block before a timer expires
+	 *
+	 * @return the time in milliseconds, 0 to block until a key is selected
+	 */
+	private long selectTimeoutMillis() {
+		long nanos = timers.nanosToNextEvent(System.nanoTime());
+		if (nanos == -1) {
+			// without a connection, the keys closed last are deregistered by the next selection
+			return server.isShutdown() ? 1 : 0;
+		}
+		// rounded up, 0 would block until a key is selected
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+	}
+
+	/**
+	 * Returns the next deadline of the connection: the end of the long poll of
+	 * a parked request, otherwise the idle timeout and the timeout of the
+	 * request being read
+	 */
+	private long deadline(Attachment attachment) {
+		if (attachment.isParked()) {
+			return attachment.getParkedUntil();
+		}
+		long deadline = attachment.getLastActivity() + idleTimeoutNanos;
+		long requestStartedAt = attachment.getRequestStartedAt();
+		if (requestStartedAt != -1 && !attachment.hasOutbound()) {
+			deadline = Math.min(deadline, requestStartedAt + requestTimeoutNanos);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Schedules the timer of the connection at its deadline if it is earlier
+	 * than the one of the timer. A later deadline is found when the timer
+	 * expires, so the activity on the connection does not move the timer.
+	 *
+	 * @param key
+	 */
+	private void scheduleTimer(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		Attachment attachment = (Attachment) key.attachment();
+		Timer timer = attachment.getTimer();
+		long deadline = deadline(attachment);
+		if (!timer.isScheduled() || deadline - timer.getDeadline() < 0) {
+			timers.schedule(timer, deadline);
+		}
+	}
+
+	/**
+	 * Handles a timer of the wheel which expired: the parked request is told
+	 * to come back later, an idle connection or a request which takes too
+	 * long is closed
+	 *
+	 * @param timer
+	 */
+	private void timerExpired(Timer timer) {
+		if (timer == leaseTimer) {
+			tasksAvailable = true;
+			return;
+		}
+		SelectionKey key = (SelectionKey) timer.getOwner();
+		if (!key.isValid()) {
+			return;
+		}
+		Attachment attachment = (Attachment) key.attachment();
+		long now = System.nanoTime();
+		if (now - deadline(attachment) < 0) {
+			scheduleTimer(key);
+			return;
+		}
+		SocketChannel sc = (SocketChannel) key.channel();
+		try {
+			if (attachment.isParked()) {
+				// the key is dropped from the queue lazily
+				respondParked(key, null);
+				scheduleTimer(key);
+			} else if (now - attachment.getLastActivity() >= idleTimeoutNanos) {
+				logger.info("Closing idle connection with client " + sc.getRemoteAddress());
+				close(key);
+				server.clientDisconnected();
+			} else {
+				logger.info("Request of client " + sc.getRemoteAddress() + " timed out");
+				requestTimeoutClose.clear();
+				sc.write(requestTimeoutClose);
+				close(key);
+				server.clientDisconnected();
+			}
+		} catch (IOException e) {
+			if (key.isValid()) {
+				close(key);
+				server.clientDisconnected();
+			}
+		}
+	}
+
+	/**
+	 * Parks the GET Task request of the key until a task is available or its
+	 * deadline
+	 *
+	 * @param key
+	 * @return false if the request has to be answered at once
+	 */
+	private boolean park(SelectionKey key) {
+		if (longPollNanos == 0 || server.isShutdown()) {
+			return false;
+		}
+		long now = System.nanoTime();
+		Attachment attachment = (Attachment) key.attachment();
+		attachment.park(now + longPollNanos);
+		if (!attachment.isQueued()) {
+			if (parked.size() >= compactParkedAt) {
+				compactParked();
+			}
+			attachment.setQueued(true);
+			parked.add(key);
+		}
+		scheduleTimer(key);
+		scheduleLeaseCheck(now);
+		return true;
+	}
+
+	private static boolean isStale(SelectionKey key) {
+		return !key.isValid() || !((Attachment) key.attachment()).isParked();
+	}
+
+	/**
+	 * Drops the keys which are not parked anymore from the queue. The queue
+	 * has to double before the next compaction, so it is O(1) amortized.
+	 */
+	private void compactParked() {
+		parked.removeIf(key -> {
+			if (isStale(key)) {
+				((Attachment) key.attachment()).setQueued(false);
+				return true;
+			}
+			return false;
+		});
+		compactParkedAt = Math.max(MIN_PARKED_COMPACTION, 2 * parked.size());
+	}
+
+	/**
+	 * Schedules the parked requests to try again when the next lease expires.
+	 * The leases of the jobs do not all have the same duration, so it is
+	 * computed again whenever a request is parked.
+	 */
+	private void scheduleLeaseCheck(long now) {
+		long nanos = server.nanosToNextExpiry(now);
+		if (nanos == -1) {
+			timers.cancel(leaseTimer);
+		} else {
+			timers.schedule(leaseTimer, now + Math.min(nanos, longPollNanos));
+		}
+	}
+
+	/**
+	 * Hands tasks to the parked requests, in arrival order, when a job got
+	 * tasks or a lease expired. Once the server is shutting down, the clients
+	 * are told to come back later.
+	 *
+	 * @throws IOException
+	 */
+	private void releaseParked() throws IOException {
+		tasksAvailable = false;
+		boolean shutdown = server.isShutdown();
+		SelectionKey key;
+		while ((key = parked.peek()) != null) {
+			Attachment attachment = (Attachment) key.attachment();
+			if (isStale(key)) {
+				parked.poll();
+				attachment.setQueued(false);
+				continue;
+			}
+			Task task = shutdown ? null : server.nextTasks(attachment.getMaxTasks(), attachment.getWorker());
+			if (task == null && !shutdown) {
+				break;
+			}
+			parked.poll();
+			attachment.setQueued(false);
+			if (shutdown) {
+				attachment.setClosing(true);
+			}
+			respondParked(key, task);
+			scheduleTimer(key);
+		}
+		if (parked.isEmpty()) {
+			timers.cancel(leaseTimer);
+		} else {
+			scheduleLeaseCheck(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Answers a parked request, then processes the requests pipelined behind
+	 * it
+	 *
+	 * @param key
+	 * @param task the task to send, or null to tell the client to come back
+	 *            later
+	 * @throws IOException
+	 */
+	private void respondParked(SelectionKey key, Task task) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
+		attachment.unpark();
+		try {
+			sendTask((SocketChannel) key.channel(), attachment, task);
+			if (attachment.hasOutbound()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			// reading may have stopped while the in buffer was full
+			key.interestOps(SelectionKey.OP_READ);
+			if (responseSent(key) && attachment.hasPendingInput()) {
+				processRequests(key);
+				attachment.releaseIdleBuffers();
+			}
+		} catch (IOException e) {
+			connectionLost(key);
+		}
+	}
+
+	/**
+	 * Closes the key, cancels its timer and gives the buffers of its
+	 * connection back to the pool
+	 *
+	 * @param key
+	 */
+	private void close(SelectionKey key) {
+		Attachment attachment = (Attachment) key.attachment();
+		attachment.release();
+		if (attachment.getTimer() != null) {
+			timers.cancel(attachment.getTimer());
+		}
+		Server.close(key);
+	}
+
+	/**
+	 * Closes the connections waiting for their next request, so that the
+	 * keys drain once the server is shutting down. The requests being read or
+	 * answered are answered with Connection: close.
+	 */
+	private void closeIdleConnections() {
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid()) {
+				continue;
+			}
+			Attachment attachment = (Attachment) key.attachment();
+			if (!attachment.isParked() && !attachment.hasOutbound() && attachment.getRequestStartedAt() == -1
+					&& !attachment.hasPendingInput()) {
+				close(key);
+				server.clientDisconnected();
+			}
+		}
+	}
+
+	/**
+	 * Close all the keys
+	 */
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			close(key);
+		}
+	}
+
+	/**
+	 * Process the keys
+	 *
+	 * @throws IOException
+	 */
+	private void processSelectedKeys() throws IOException {
+		for (SelectionKey key : selectedKeys) {
+			if (key.isValid() && key.isWritable()) {
+				try {
+					doWrite(key);
+				} catch (IOException e) {
+					connectionLost(key);
+				}
+			}
+			if (key.isValid() && key.isReadable()) {
+				try {
+					doRead(key);
+				} catch (IOException e) {
+					connectionLost(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the key of a client which is not reachable anymore
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void connectionLost(SelectionKey key) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		logger.info("Connection lost with client " + sc.getRemoteAddress());
+		close(key);
+		server.clientDisconnected();
+	}
+
+	/**
+	 * reads from the channel of the key
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void doRead(SelectionKey key) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		Attachment attachment = (Attachment) key.attachment();
+
+		if (sc.read(attachment.getIn()) == -1) {
+			throw new ClosedChannelException();
+		}
+		attachment.touch();
+		if (attachment.isParked()) {
+			// the pipelined requests wait for the response to the parked one
+			if (!attachment.getIn().hasRemaining()) {
+				key.interestOps(0);
+			}
+			return;
+		}
+		attachment.requestStarted(attachment.getLastActivity());
+
+		processRequests(key);
+		attachment.releaseIdleBuffers();
+		scheduleTimer(key);
+	}
+
+	/**
+	 * Parses the requests whose bytes are in the in buffer of the attachment
+	 * and responds to them. When the socket does not accept the whole response,
+	 * the key waits to write the rest and the next requests are not parsed
+	 * before.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void processRequests(SelectionKey key) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		Attachment attachment = (Attachment) key.attachment();
+		HTTPRequestParser parser = attachment.getParser();
+		ByteBuffer in = attachment.getIn();
+
+		while (true) {
+			in.flip();
+			long start = System.nanoTime();
+			int status = parser.parse(in);
+			attachment.addParseNanos(System.nanoTime() - start);
+			in.compact();
+			if (status == HTTPRequestParser.NEED_MORE) {
+				if (parser.isStarted() || in.position() != 0) {
+					attachment.requestStarted(System.nanoTime());
+				} else {
+					attachment.requestRead();
+				}
+				return;
+			}
+			attachment.requestRead();
+			parseTime.record(attachment.takeParseNanos());
+
+			boolean handled;
+			try {
+				handled = status == HTTPRequestParser.COMPLETE && handleRequest(attachment, sc);
+			} catch (Exception e) {
+				handled = false;
+			} finally {
+				parser.reset();
+			}
+			if (!handled) {
+				// the state of the connection is lost, the client has to reconnect
+				badRequestClose.clear();
+				sc.write(badRequestClose);
+				close(key);
+				server.clientDisconnected();
+				return;
+			}
+
+			if (attachment.isRequestingTask()) {
+				attachment.setRequestingTask(false);
+				// no task is given once the server is shutting down
+				Task task = server.isShutdown() ? null
+						: server.nextTasks(attachment.getMaxTasks(), attachment.getWorker());
+				if (task == null && park(key)) {
+					return;
+				}
+				sendTask(sc, attachment, task);
+			} else if (attachment.isRequestingMetrics()) {
+				attachment.setRequestingMetrics(false);
+				sendMetrics(sc, attachment);
+			} else if (attachment.isRequestingCosts()) {
+				attachment.setRequestingCosts(false);
+				sendCosts(sc, attachment);
+			} else {
+				sendCheckCode(sc, attachment);
+			}
+			if (attachment.hasOutbound()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (!responseSent(key)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection if the client asked for it once the response is
+	 * sent
+	 *
+	 * @param key
+	 * @return false if the connection was closed
+	 */
+	private boolean responseSent(SelectionKey key) {
+		Attachment attachment = (Attachment) key.attachment();
+		attachment.touch();
+		if (attachment.isClosing()) {
+			close(key);
+			server.clientDisconnected();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes what the socket accepts, the rest is copied in the outbound queue
+	 * of the attachment. The buffers can be reused once this returns.
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @param buffers
+	 * @throws IOException
+	 */
+	private static void send(SocketChannel sc, Attachment attachment, ByteBuffer[] buffers) throws IOException {
+		if (!attachment.hasOutbound()) {
+			sc.write(buffers);
+		}
+		for (ByteBuffer bb : buffers) {
+			if (bb.hasRemaining()) {
+				attachment.queue(bb);
+			}
+		}
+	}
+
+	private static void send(SocketChannel sc, Attachment attachment, ByteBuffer bb) throws IOException {
+		if (!attachment.hasOutbound()) {
+			sc.write(bb);
+		}
+		if (bb.hasRemaining()) {
+			attachment.queue(bb);
+		}
+	}
+
+	/**
+	 * Handles a complete request wich the server received
+	 *
+	 * @param attachment
+	 * @param sc
+	 * @return false if the request is not one of the server
+	 * @throws IOException
+	 */
+	private boolean handleRequest(Attachment attachment, SocketChannel sc) throws IOException {
+		HTTPRequestParser parser = attachment.getParser();
+		int method = parser.getMethod();
+		int target = parser.getTarget();
+
+		if (method == HTTPRequestParser.METHOD_GET && target == HTTPRequestParser.TARGET_TASK) {
+			if (logger.isEnabled(Level.DEBUG)) {
+				logger.debug("Client " + sc.getRemoteAddress() + " is requesting a task");
+			}
+			attachment.setMaxTasks(parser.getMaxTasks());
+			attachment.setWorker(parser.getWorker());
+			attachment.requestTask();
+		} else if (method == HTTPRequestParser.METHOD_POST && target == HTTPRequestParser.TARGET_ANSWERS
+				&& parser.isJSON()) {
+			if (logger.isEnabled(Level.DEBUG)) {
+				logger.debug("Client " + sc.getRemoteAddress() + " is posting a batch of answers");
+			}
+			saveAnswers(attachment, parser.getContent());
+		} else if (method == HTTPRequestParser.METHOD_POST && target == HTTPRequestParser.TARGET_ANSWER
+				&& parser.isJSON()) {
+			if (logger.isEnabled(Level.DEBUG)) {
+				logger.debug("Client " + sc.getRemoteAddress() + " is posting an answer");
+			}
+			parsePOST(attachment, parser.getContent());
+		} else if (method == HTTPRequestParser.METHOD_GET && target == HTTPRequestParser.TARGET_METRICS) {
+			attachment.requestMetrics();
+		} else if (method == HTTPRequestParser.METHOD_GET && target == HTTPRequestParser.TARGET_COSTS) {
+			attachment.requestCosts();
+		} else {
+			return false;
+		}
+		// the persistent connections are closed once the server is shutting down
+		attachment.setClosing(parser.isConnectionClose() || server.isShutdown());
+		return true;
+	}
+
+	/**
+	 * Parses the content of a POST Answer request. The answer is validated once
+	 * and saved as it was received, the answer of an unknown job is invalid.
+	 *
+	 * @param attachment
+	 * @param bb the content, in read-mode
+	 */
+	private void parsePOST(Attachment attachment, ByteBuffer bb) {
+		long jobId = bb.getLong();
+		int task = bb.getInt();
+		byte[] answer = new byte[bb.remaining()];
+		bb.get(answer);
+		boolean valid = answerValidator.validate(answer, 0, answer.length, jobId, task) && server.isKnownJob(jobId);
+		attachment.requestAnswer(valid);
+		if (valid) {
+			attachment.setAnswerQueued(server.saveAnswer(jobId, task, answer, answerValidator.getClientId(),
+					answerValidator.getComputeNanos()));
+		} else {
+			server.answerRejected(jobId);
+		}
+	}
+
+	/**
+	 * Saves a batch of answers, whose content is the jobId followed for each
+	 * answer by the task, the length of the answer and the answer. The invalid
+	 * answers are rejected one by one: the batch gets 200 with the list of
+	 * their tasks, so that the client does not post them again. It gets 503
+	 * if a valid answer could not be queued, and 400 only if it is malformed.
+	 *
+	 * @param attachment
+	 * @param bb
+	 */
+	private void saveAnswers(Attachment attachment, ByteBuffer bb) {
+		long jobId = bb.getLong();
+		int code = 200;
+		ArrayList<Integer> rejected = null;
+		while (bb.hasRemaining()) {
+			int task = bb.getInt();
+			int length = bb.getInt();
+			if (length < 0 || length > bb.remaining()) {
+				attachment.requestAnswers(400, null);
+				return;
+			}
+			byte[] answer = new byte[length];
+			bb.get(answer);
+			if (!answerValidator.validate(answer, 0, length, jobId, task) || !server.isKnownJob(jobId)) {
+				server.answerRejected(jobId);
+				if (rejected == null) {
+					rejected = new ArrayList<>();
+				}
+				rejected.add(task);
+			} else if (!server.saveAnswer(jobId, task, answer, answerValidator.getClientId(),
+					answerValidator.getComputeNanos()) && code == 200) {
+				code = 503;
+			}
+		}
+		attachment.requestAnswers(code, rejected == null ? null : rejected.stream().mapToInt(i -> i).toArray());
+	}
+
+	/**
+	 * Sends the task to the client
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @param task the task, or null to tell the client to come back later
+	 * @throws IOException
+	 */
+	private void sendTask(SocketChannel sc, Attachment attachment, Task task) throws IOException {
+		if (task == null) {
+			ByteBuffer response = attachment.isClosing() ? noTaskClose : noTask;
+			response.clear();
+			send(sc, attachment, response);
+			return;
+		}
+
+		TaskResponse taskResponse = server.getTaskResponse(task.getJobId());
+		if (responseBody.capacity() < taskResponse.maxBodySize()) {
+			responseBody = ByteBuffer.allocateDirect(taskResponse.maxBodySize());
+			response[1] = responseBody;
+		}
+		responseHeader.clear();
+		responseBody.clear();
+		taskResponse.encode(task.getTask(), task.getTaskCount(), responseHeader, responseBody);
+		send(sc, attachment, response);
+	}
+
+	/**
+	 * Sends the metrics of the server in the Prometheus text format
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @throws IOException
+	 */
+	private void sendMetrics(SocketChannel sc, Attachment attachment) throws IOException {
+		StringBuilder sb = new StringBuilder(8192);
+		server.getMetrics().write(sb);
+		byte[] body = sb.toString().getBytes(Server.charsetUTF8);
+		ByteBuffer header = Server.charsetASCII.encode(METRICS_HEADER + body.length + "\r\n"
+				+ (attachment.isClosing() ? CONNECTION_CLOSE : "") + "\r\n");
+		send(sc, attachment, new ByteBuffer[] { header, ByteBuffer.wrap(body) });
+	}
+
+	/**
+	 * Sends the cost model of the jobs in JSON
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @throws IOException
+	 */
+	private void sendCosts(SocketChannel sc, Attachment attachment) throws IOException {
+		byte[] body = server.costsJSON().getBytes(Server.charsetUTF8);
+		ByteBuffer header = Server.charsetASCII.encode(JSON_HEADER + body.length + "\r\n"
+				+ (attachment.isClosing() ? CONNECTION_CLOSE : "") + "\r\n");
+		send(sc, attachment, new ByteBuffer[] { header, ByteBuffer.wrap(body) });
+	}
+
+	/**
+	 * Writes the rest of the response. Once it is sent, the key waits for the
+	 * next request and the pipelined requests already read are processed.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void doWrite(SelectionKey key) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
+		attachment.touch();
+		if (!attachment.flush((SocketChannel) key.channel())) {
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		// pipelined requests already read do not make the key readable again
+		if (responseSent(key) && attachment.hasPendingInput()) {
+			processRequests(key);
+			attachment.releaseIdleBuffers();
+		}
+		scheduleTimer(key);
+	}
+
+	/**
+	 * Accepts a batch of answers some of which were invalid, the body lists
+	 * their tasks: {"Rejected":[task, ...]}
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @throws IOException
+	 */
+	private void sendRejected(SocketChannel sc, Attachment attachment) throws IOException {
+		StringBuilder json = new StringBuilder("{\"Rejected\":[");
+		int[] tasks = attachment.getRejectedTasks();
+		for (int i = 0; i < tasks.length; i++) {
+			if (i != 0) {
+				json.append(',');
+			}
+			json.append(tasks[i]);
+		}
+		json.append("]}");
+		send(sc, attachment, Server.charsetASCII.encode(JSON_HEADER + json.length() + "\r\n"
+				+ (attachment.isClosing() ? CONNECTION_CLOSE : "") + "\r\n" + json));
+		attachment.clean();
+	}
+
+	/**
+	 * Sends the check code to the client
+	 *
+	 * @param sc
+	 * @param attachment
+	 * @throws IOException
+	 */
+	private void sendCheckCode(SocketChannel sc, Attachment attachment) throws IOException {
+		ByteBuffer code;
+		if (attachment.getAnswersCode() == 200 && attachment.getRejectedTasks() != null) {
+			sendRejected(sc, attachment);
+			return;
+		}
+		if (attachment.getAnswersCode() != 0) {
+			switch (attachment.getAnswersCode()) {
+			case 200:
+				code = attachment.isClosing() ? okClose : ok;
+				break;
+			case 503:
+				code = attachment.isClosing() ? serviceUnavailableClose : serviceUnavailable;
+				break;
+			default:
+				code = attachment.isClosing() ? badRequestClose : badRequest;
+				break;
+			}
+		} else {
+			if (!attachment.isAnswerValid()) {
+				code = attachment.isClosing() ? badRequestClose : badRequest;
+			} else if (attachment.isAnswerQueued()) {
+				code = attachment.isClosing() ? okClose : ok;
+			} else {
+				code = attachment.isClosing() ? serviceUnavailableClose : serviceUnavailable;
+			}
+		}
+		code.clear();
+		send(sc, attachment, code);
+		attachment.clean();
+	}
+}
@@ -1,61 +1,80 @@
 package upem.jarret.server;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayDeque;
 import java.util.Objects;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-import upem.jarret.http.HTTPReaderServer;
+import upem.jarret.http.HTTPRequestParser;
 import upem.jarret.job.Job;
-import util.JsonTools;
-
-import com.fasterxml.jackson.core.JsonFactory;
+import upem.jarret.job.JobScheduler;
+import upem.jarret.job.Task;
+import util.AsyncLogger;
+import util.AsyncLogger.Level;
+import util.BufferPool;
+import util.Histogram;
+import util.JsonCodec;
+import util.Metrics;
+
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 public class Server {
-	private static final String HTTP_1_1_200_OK = "HTTP/1.1 200 OK\r\n\r\n";
 	static final Charset charsetASCII = Charset.forName("ASCII");
 	static final Charset charsetUTF8 = Charset.forName("utf-8");
-	static final String badRequest = "HTTP/1.1 400 Bad Request\r\n\r\n";
+	static final String badRequest = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n";
+	// the default backlog of 50 drops connections when many clients connect at once
+	private static final int ACCEPT_BACKLOG = 1024;
 
 	private final ServerSocketChannel ssc;
 	private final Selector selector;
-	private final Set<SelectionKey> selectedKeys;
+	private final Reactor[] reactors;
 
-	private final String logPath;
-	private final String answersPath;
-	private final long maxFileSize;
+	private final AsyncLogger logger;
+	private final AnswerWriter answerWriter;
 	private final int comeBackInSeconds;
-	private final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
-	private final Object clientMonitor = new Object();
-	//private final PrintWriter log;
-
-	private boolean shutdown = false;
+	private final long longPollNanos;
+	private final int maxTasksPerRequest;
+	private final long idleTimeoutNanos;
+	private final long requestTimeoutNanos;
+	private final long bufferPoolBytes;
+	private final JobScheduler scheduler = new JobScheduler();
+	// kept after a REMOVE, a task of the job may still be on its way
+	private final ConcurrentHashMap<Long, TaskResponse> taskResponses = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, JobMetrics> jobMetrics = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, JobCosts> jobCosts = new ConcurrentHashMap<>();
+	private final Metrics metrics = new Metrics();
+	private final LongAdder nbAnswers = metrics.counter("jarret_answers_total", "Answers queued to be written");
+	private final LongAdder nbUnavailable = metrics.counter("jarret_answers_unavailable_total",
+			"Answers refused because the answer queue was full");
+	private final Histogram answerLatency = metrics.histogram("jarret_answer_latency_seconds",
+			"Time from the dispatch of a task to its first answer");
+
+	private volatile boolean shutdown = false;
 	private SelectionKey acceptKey;
-	private int nbClients = 0;
-	private int nbAnswers = 0;
+	private int nextReactor = 0;
+	private final AtomicInteger nbClients = new AtomicInteger();
 
 	private final Thread consoleThread = new Thread(() -> {
 		try (Scanner scanner = new Scanner(System.in)) {
 			while (scanner.hasNextLine()) {
-				switch (scanner.nextLine()) {
+				String line = scanner.nextLine();
+				switch (line) {
 				case "SHUTDOWN":
 					shutdown();
 					break;
@@ -66,24 +85,61 @@ public class Server {
 					info();
 					break;
 				default:
-					System.out.println("WRONG COMMAND");
+					if (!jobCommand(line)) {
+						System.out.println("WRONG COMMAND");
+					}
 					break;
 				}
 			}
 		}
 	});
 
-	private Server(int port, String logPath, String answersPath, long maxFileSize, int comeBackInSeconds)
-			throws IOException {
-		this.logPath = logPath;
-		this.answersPath = answersPath;
-		this.maxFileSize = maxFileSize;
+	private Server(int port, AsyncLogger logger, AnswerWriter answerWriter, int comeBackInSeconds,
+			int longPollSeconds, int nbReactors, int maxTasksPerRequest, int idleTimeoutSeconds,
+			int requestTimeoutSeconds, long bufferPoolBytes) throws IOException {
+		if (nbReactors < 1) {
+			throw new IllegalArgumentException("At least one reactor is needed");
+		}
+		if (maxTasksPerRequest < 1) {
+			throw new IllegalArgumentException("MaxTasksPerRequest must be positive");
+		}
+		this.maxTasksPerRequest = maxTasksPerRequest;
+		this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+		this.requestTimeoutNanos = TimeUnit.SECONDS.toNanos(requestTimeoutSeconds);
+		this.bufferPoolBytes = bufferPoolBytes;
+		this.logger = Objects.requireNonNull(logger);
+		this.answerWriter = Objects.requireNonNull(answerWriter);
 		this.comeBackInSeconds = comeBackInSeconds;
+		this.longPollNanos = TimeUnit.SECONDS.toNanos(Math.max(longPollSeconds, 0));
 
 		ssc = ServerSocketChannel.open();
-		ssc.bind(new InetSocketAddress(port));
+		ssc.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
 		selector = Selector.open();
-		selectedKeys = selector.selectedKeys();
+		reactors = new Reactor[nbReactors];
+		for (int i = 0; i < nbReactors; i++) {
+			reactors[i] = new Reactor(this, i);
+		}
+		registerGauges();
+	}
+
+	private void registerGauges() {
+		metrics.gauge("jarret_clients_connected", "Connections open", nbClients::get);
+		metrics.gauge("jarret_answer_queue_depth", "Answers waiting to be written", answerWriter::getQueueDepth);
+		metrics.gauge("jarret_log_dropped", "Log messages dropped because the queue was full", logger::getDropped);
+		metrics.gauge("jarret_buffers_in_use", "Pooled buffers borrowed by the connections", () -> {
+			long inUse = 0;
+			for (Reactor reactor : reactors) {
+				inUse += reactor.getBufferPool().getInUse();
+			}
+			return inUse;
+		});
+		metrics.gauge("jarret_buffers_pooled_bytes", "Size of the slabs of the buffer pools", () -> {
+			long pooledBytes = 0;
+			for (Reactor reactor : reactors) {
+				pooledBytes += reactor.getBufferPool().getPooledBytes();
+			}
+			return pooledBytes;
+		});
 	}
 
 	/**
@@ -91,11 +147,52 @@ public class Server {
 	 */
 	private void info() {
 		System.out.println("INFO");
-		synchronized (clientMonitor) {
-			System.out.println("Connected clients: "+nbClients);
+		System.out.println("Connected clients: "+nbClients.get());
+		Job next = scheduler.peek();
+		if (next != null) {
+			System.out.println("Next task: - jobId: "+next.getJobId()+" - task: "+next.getCurrentTask());
+		}
+		System.out.println("Answers received: "+nbAnswers.sum());
+		System.out.println("Answers waiting to be written: "+answerWriter.getQueueDepth());
+		System.out.println("Log messages dropped: "+logger.getDropped());
+		int inUse = 0;
+		int free = 0;
+		long pooledBytes = 0;
+		long unpooled = 0;
+		for (Reactor reactor : reactors) {
+			BufferPool pool = reactor.getBufferPool();
+			inUse += pool.getInUse();
+			free += pool.getFree();
+			pooledBytes += pool.getPooledBytes();
+			unpooled += pool.getUnpooled();
+		}
+		System.out.println("Buffers: "+inUse+" in use, "+free+" free, "+pooledBytes+" bytes pooled, "+unpooled+" allocated outside the pool");
+		long now = System.nanoTime();
+		for (JobCosts costs : new TreeMap<>(jobCosts).values()) {
+			System.out.println(costs.summary(now));
 		}
-		System.out.println("Next task: - jobId: "+jobs.getFirst().getJobId()+" - task: "+jobs.getFirst().getCurrentTask());
-		System.out.println("Answers received: "+nbAnswers);
+	}
+
+	/**
+	 * Returns the cost model of the jobs, including the removed ones, as a
+	 * JSON object
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	String costsJSON() throws IOException {
+		long now = System.nanoTime();
+		StringWriter writer = new StringWriter();
+		JsonGenerator jg = JsonCodec.createGenerator(writer);
+		jg.writeStartObject();
+		jg.writeArrayFieldStart("Jobs");
+		for (JobCosts costs : new TreeMap<>(jobCosts).values()) {
+			costs.write(jg, now);
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+		jg.close();
+		return writer.toString();
 	}
 
 	/**
@@ -104,12 +201,9 @@ public class Server {
 	private void shutdown() {
 		System.out.println("SHUTDOWN");
 
-		try {
-			close(acceptKey);
-		} catch (IOException e) {
-			//
-		}
+		close(acceptKey);
 		shutdown = true;
+		selector.wakeup();
 	}
 
 	/**
@@ -117,24 +211,69 @@ public class Server {
 	 */
 	private void shutdownNow() {
 		System.out.println("SHUTDOWN NOW");
-		try {
-			close(acceptKey);
-		} catch (IOException e) {
-			//
-		}
-		for (SelectionKey key : selector.keys()) {
-			try {
-				close(key);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		close(acceptKey);
+		shutdown = true;
+		selector.wakeup();
+		for (Reactor reactor : reactors) {
+			reactor.shutdownNow();
 		}
+	}
 
-		shutdown = true;
+	/**
+	 * Returns true once SHUTDOWN or SHUTDOWN NOW was requested
+	 * 
+	 * @return
+	 */
+	boolean isShutdown() {
+		return shutdown;
+	}
+
+	int getComeBackInSeconds() {
+		return comeBackInSeconds;
+	}
+
+	/**
+	 * Returns how long a GET Task request waits for a task before the server
+	 * tells the client to come back later, 0 if it does not wait
+	 * 
+	 * @return
+	 */
+	long getLongPollNanos() {
+		return longPollNanos;
+	}
+
+	/**
+	 * Returns the size of the slabs each reactor may allocate for its buffers
+	 * 
+	 * @return
+	 */
+	long getBufferPoolBytes() {
+		return bufferPoolBytes;
+	}
+
+	long getIdleTimeoutNanos() {
+		return idleTimeoutNanos;
+	}
+
+	/**
+	 * Returns how long a client may take to send a whole request
+	 * 
+	 * @return
+	 */
+	long getRequestTimeoutNanos() {
+		return requestTimeoutNanos;
+	}
+
+	/**
+	 * Decrements the number of connected clients
+	 */
+	void clientDisconnected() {
+		nbClients.decrementAndGet();
 	}
 
 	/**
-	 * Launches the server
+	 * Launches the server. The calling thread becomes the acceptor, the
+	 * accepted clients are handed to the reactors in a round robin way.
 	 * 
 	 * @throws IOException
 	 */
@@ -144,272 +283,318 @@ public class Server {
 
 		ssc.configureBlocking(false);
 		acceptKey = ssc.register(selector, SelectionKey.OP_ACCEPT);
-		saveLog("Server launched on port " + ssc.getLocalAddress());
-		Set<SelectionKey> selectedKeys = selector.selectedKeys();
+		logger.start();
+		logger.info("Server launched on port " + ssc.getLocalAddress() + " with " + reactors.length + " reactors");
+
+		loadJobs(Paths.get("config/JarRetJobs.json"));
 
-		loadJobs();
+		answerWriter.start(this::answersLost);
+		for (Reactor reactor : reactors) {
+			reactor.start();
+		}
 
-		while (!selector.keys().isEmpty() || !shutdown) {
-			selector.select(300);
-			processSelectedKeys();
-			selectedKeys.clear();
+		while (!shutdown) {
+			selector.select();
+			if (acceptKey.isValid() && acceptKey.isAcceptable()) {
+				try {
+					doAccept();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+
+		for (Reactor reactor : reactors) {
+			reactor.wakeup();
+		}
+		try {
+			for (Reactor reactor : reactors) {
+				reactor.join();
+			}
+			answerWriter.close();
+			logger.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		selector.close();
+	}
+
+	/**
+	 * Runs the console commands changing the jobs at runtime:
+	 * PRIORITY jobId weight, REMOVE jobId and LOAD jobsFile
+	 * 
+	 * @param command
+	 * @return false if the command is unknown or malformed
+	 */
+	private boolean jobCommand(String command) {
+		String[] token = command.trim().split("\\s+");
+		try {
+			switch (token[0]) {
+			case "PRIORITY":
+				if (token.length != 3) {
+					return false;
+				}
+				if (!scheduler.setWeight(Long.parseLong(token[1]), Double.parseDouble(token[2]))) {
+					System.out.println("Unknown job " + token[1]);
+				} else {
+					tasksAvailable();
+				}
+				return true;
+			case "REMOVE":
+				if (token.length != 2) {
+					return false;
+				}
+				if (!scheduler.remove(Long.parseLong(token[1]))) {
+					System.out.println("Unknown job " + token[1]);
+				}
+				return true;
+			case "LOAD":
+				if (token.length != 2) {
+					return false;
+				}
+				loadJobs(Paths.get(token[1]));
+				return true;
+			default:
+				return false;
+			}
+		} catch (IllegalArgumentException e) {
+			return false;
+		} catch (IOException e) {
+			System.out.println("Could not load jobs: " + e);
+			return true;
 		}
 	}
 
 	/**
-	 * Loads the job from the config file
+	 * Loads the jobs from a jobs file and adds them to the scheduler
 	 * 
+	 * @param jobsConfigPath
 	 * @throws JsonParseException
 	 * @throws IOException
 	 */
-	private void loadJobs() throws JsonParseException, IOException {
-		Path jobsConfigPath = Paths.get("config/JarRetJobs.json");
-
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(Files.newBufferedReader(jobsConfigPath));
+	private void loadJobs(Path jobsConfigPath) throws JsonParseException, IOException {
+		JsonParser jp = JsonCodec.createParser(jobsConfigPath);
 
 		JsonToken current = jp.nextToken();
 		while (current != null) {
 			switch (current) {
 			case START_OBJECT:
 				Job job = Job.parseJSON(jp);
-				for (int i = 0; i < Integer.parseInt(job.getJobPriority()); i++) {
-					jobs.add(job);
+				long jobId = Long.parseLong(job.getJobId());
+				if (scheduler.get(jobId) != null) {
+					logger.warn("Job " + jobId + " is already scheduled");
+					break;
 				}
+				job.resume(answerWriter.openCompletionBitmap(jobId, job.getTaskNumber()));
+				if (job.getCompletedTasks() != 0) {
+					logger.info("Job " + jobId + " resumed with " + job.getCompletedTasks() + "/"
+							+ job.getTaskNumber() + " tasks completed");
+				}
+				taskResponses.put(jobId, new TaskResponse(job));
+				jobMetrics.put(jobId, new JobMetrics(metrics, job.getJobId(), job.getTaskNumber()));
+				jobCosts.put(jobId, new JobCosts(metrics, job));
+				scheduler.add(job, HTTPRequestParser.hashWorker(job.getWorkerClassName(), job.getWorkerVersion()),
+						Double.parseDouble(job.getJobPriority()));
+				tasksAvailable();
+				System.out.println(job);
 				break;
 			default:
 				break;
 			}
 			current = jp.nextToken();
 		}
-
-		for (Job job : jobs) {
-			System.out.println(job);
-		}
+		jp.close();
 	}
 
 	/**
-	 * Process the keys
+	 * Accepts the pending clients and hands them to the reactors
 	 * 
 	 * @throws IOException
 	 */
-	private void processSelectedKeys() throws IOException {
-		for (SelectionKey key : selectedKeys) {
-
-			if (key.isValid() && key.isAcceptable()) {
-				try {
-					doAccept(key);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			if (key.isValid() && key.isWritable()) {
-				try {
-					doWrite(key);
-				} catch (IOException e) {
-					SocketChannel sc = (SocketChannel) key.channel();
-					saveLog("Connection lost with client "+sc.getRemoteAddress());
-					close(key);
-					synchronized (clientMonitor) {
-						nbClients--;
-					}
-				}
-			}
-			if (key.isValid() && key.isReadable()) {
-				try {
-					doRead(key);
-				} catch (IOException e) {
-					SocketChannel sc = (SocketChannel) key.channel();
-					saveLog("Connection lost with client "+sc.getRemoteAddress());
-					close(key);
-					synchronized (clientMonitor) {
-						nbClients--;
-					}
-				}
+	private void doAccept() throws IOException {
+		SocketChannel sc;
+		while ((sc = ssc.accept()) != null) {
+			if (logger.isEnabled(Level.DEBUG)) {
+				logger.debug("New connection from " + sc.getRemoteAddress());
 			}
+			nbClients.incrementAndGet();
+			reactors[nextReactor].register(sc);
+			nextReactor = (nextReactor + 1) % reactors.length;
 		}
 	}
 
 	/**
-	 * Accepts a key
+	 * Creates the next batch of tasks to dispatch, or returns null if there is
+	 * none
 	 * 
-	 * @param key
+	 * @param maxTasks the number of tasks the client accepts
+	 * @param worker hash of the worker the client loaded, 0 if it has none
+	 * @return
 	 * @throws IOException
 	 */
-	private void doAccept(SelectionKey key) throws IOException {
-		SocketChannel sc = ssc.accept();
-		if (sc == null) {
-			return;
+	Task nextTasks(int maxTasks, long worker) throws IOException {
+		Task task = scheduler.nextTasks(Math.min(maxTasks, maxTasksPerRequest), worker);
+		if (task != null) {
+			JobMetrics jm = jobMetrics.get(task.getJobId());
+			if (jm != null && task.isSpeculative()) {
+				jm.speculated(task.getTaskCount());
+			} else if (jm != null) {
+				jm.dispatched(task.getTask(), task.getTaskCount(), System.nanoTime());
+			}
 		}
-		sc.configureBlocking(false);
-		sc.register(selector, SelectionKey.OP_READ, new Attachment(sc));
-		saveLog("New connection from " + sc.getRemoteAddress());
-		synchronized(clientMonitor) {
-			nbClients++;
+		return task;
+	}
+
+	/**
+	 * Tells the reactors to hand tasks to the GET Task requests they parked
+	 */
+	private void tasksAvailable() {
+		for (Reactor reactor : reactors) {
+			reactor.tasksAvailable();
 		}
 	}
 
 	/**
-	 * reads from the channel of the key
+	 * Returns the time left before a lease expires and its task can be
+	 * dispatched again
 	 * 
-	 * @param key
-	 * @throws IOException
+	 * @param now value of System.nanoTime()
+	 * @return the time in nanoseconds, -1 if no lease is outstanding
 	 */
-	private void doRead(SelectionKey key) throws IOException {
-		SocketChannel sc = (SocketChannel) key.channel();
-		Attachment attachment = (Attachment) key.attachment();
-		HTTPReaderServer reader = attachment.getReader();
-
-		sc.read(attachment.getIn());
-
-		if(attachment.isReadingRequest()) {
-			try{
-				attachment.setRequest(reader.readLineCRLF());
-				attachment.setReadingRequest(false);
-			} catch(IllegalStateException e) {
-				return;
-			}
-		}
+	long nanosToNextExpiry(long now) {
+		return scheduler.nanosToNextExpiry(now);
+	}
 
-		try {
-			parseRequest(attachment, sc);
-		} catch(IllegalStateException e) {
-			System.out.println("resuqesting task !");
-			return;
-		} catch (Exception e) {
-			sc.write(charsetUTF8.encode(badRequest));
-			return;
-		}
+	/**
+	 * Returns the pre-encoded response to GET Task for the tasks of the job
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	TaskResponse getTaskResponse(long jobId) {
+		return taskResponses.get(jobId);
+	}
 
-		key.interestOps(SelectionKey.OP_WRITE);
+	AsyncLogger getLogger() {
+		return logger;
 	}
 
 	/**
-	 * Parses a request wich the server received
+	 * Hands the first answer of the task to the answer writer, never blocks on
+	 * the disk, and completes the task. The answers coming after it, from a
+	 * copy of the task or an expired lease, are dropped before being written.
 	 * 
-	 * @param request
-	 * @param attachment
-	 * @param sc
-	 * @throws IOException
+	 * @param jobId
+	 * @param task
+	 * @param answer the bytes of the answer as received
+	 * @param clientId the client, or null if it did not give its id
+	 * @param computeNanos the time the client took, -1 if it did not give it
+	 * @return false if the answer could not be queued
 	 */
-	private void parseRequest(Attachment attachment, SocketChannel sc) throws IOException {
-		String request = attachment.getRequest();
-		String firstLine = request.split("\r\n")[0];
-		String[] token = firstLine.split(" ");
-		String cmd = token[0];
-		String requested = token[1];
-		String protocol = token[2];
-
-		if (cmd.equals("GET") && requested.equals("Task") && protocol.equals("HTTP/1.1")) {
-			if(!attachment.isParsingRequest()){
-				saveLog("Client "+sc.getRemoteAddress()+ " is requesting a task");
+	boolean saveAnswer(long jobId, int task, byte[] answer, String clientId, long computeNanos) {
+		JobMetrics jm = jobMetrics.get(jobId);
+		JobCosts costs = jobCosts.get(jobId);
+		Job job = scheduler.get(jobId);
+		if (job == null) {
+			// a removed job still gets the answers of the tasks it gave, once
+			job = scheduler.getRemoved(jobId);
+		}
+		if (job == null) {
+			logger.warn("Answer of task " + task + " of unknown job " + jobId + " dropped");
+			return true;
+		}
+		switch (job.saveAnswer(task, () -> submit(jobId, task, answer, jm))) {
+		case SAVED:
+			long now = System.nanoTime();
+			if (jm != null) {
+				long dispatchedAt = jm.answered(task);
+				if (dispatchedAt != -1) {
+					answerLatency.record(now - dispatchedAt);
+				}
 			}
-			attachment.requestTask();
-			attachment.setParsingRequest(true);
-			if (attachment.isParsingRequest()) { 
-				while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters og GET request **/}
-				attachment.setParsingRequest(false);
+			if (costs != null) {
+				costs.completed(now);
 			}
-		} else if (cmd.equals("POST") && requested.equals("Answer") && protocol.equals("HTTP/1.1")) {
-			if(!attachment.isParsingRequest()) {
-				saveLog("Client "+sc.getRemoteAddress() + " is posting an answer");
+			computed(costs, clientId, computeNanos);
+			return true;
+		case DROPPED:
+			if (jm != null) {
+				jm.dropped();
 			}
-			attachment.setParsingRequest(true);
-			String answer = parsePOST(attachment);
-			Objects.requireNonNull(answer);
-			attachment.requestAnswer(answer);
-			attachment.setParsingRequest(false);
-		} else {
-			throw new IllegalArgumentException();
+			// the time of a late answer is as good a sample of the cost of a task
+			computed(costs, clientId, computeNanos);
+			return true;
+		default:
+			return false;
 		}
 	}
 
 	/**
-	 * Parses a POST request
+	 * Gives back to their job the tasks whose answers the writer could not
+	 * write, so they are dispatched again
 	 * 
-	 * @param attachment
-	 * @return
-	 * @throws IOException
+	 * @param jobId
+	 * @param tasks
 	 */
-	private String parsePOST(Attachment attachment) throws IOException {
-		HTTPReaderServer reader = attachment.getReader();
-		if(!attachment.isReadingAnswer()) {
-			String line;
-			while (!(line = reader.readLineCRLF()).equals("")) {
-				String[] token = line.split(": ");
-				if (token[0].equals("Content-Length")) {
-					attachment.setContentLength(Integer.parseInt(token[1]));
-				}
-				if (token[0].equals("Content-Type")) {
-					if (!token[1].equals("application/json")) {
-						throw new IllegalArgumentException();
-					}
-				}
-			}
-			attachment.setReadingAnswer(true);
+	private void answersLost(long jobId, int[] tasks) {
+		boolean reopened = false;
+		for (int task : tasks) {
+			reopened |= scheduler.reopenTask(jobId, task);
 		}
-		ByteBuffer bb = reader.readBytes(attachment.getContentLength());
-		attachment.setReadingAnswer(false);
-		bb.flip();
-		long jobId = bb.getLong();
-		int task = bb.getInt();
-		String answer = charsetUTF8.decode(bb).toString();
-		if (answer != null && JsonTools.isJSON(answer)) {
-			saveAnswer(jobId, task, answer);
-			nbAnswers++;
+		if (reopened) {
+			tasksAvailable();
+		} else if (scheduler.getRemoved(jobId) != null) {
+			logger.warn("Job " + jobId + " is removed, its " + tasks.length
+					+ " lost tasks are computed again when it is loaded");
 		}
-
-		return answer;
 	}
 
-	/**
-	 * Saves the String log into the log file
-	 * 
-	 * @param log
-	 */
-	private void saveLog(String log) {
-		System.out.println(log);
-		Path logFilePath = Paths.get(logPath+"log");
+	private static void computed(JobCosts costs, String clientId, long computeNanos) {
+		if (costs != null && computeNanos >= 0) {
+			costs.computed(clientId, computeNanos);
+		}
+	}
 
-		try (BufferedWriter writer = Files.newBufferedWriter(logFilePath, StandardOpenOption.APPEND,
-				StandardOpenOption.CREATE); PrintWriter outLog = new PrintWriter(writer)) {
-			outLog.println(log);
-		} catch (IOException e) {
-			System.err.println(e);
+	private boolean submit(long jobId, int task, byte[] answer, JobMetrics jm) {
+		if (!answerWriter.submit(jobId, task, answer)) {
+			nbUnavailable.increment();
+			return false;
+		}
+		nbAnswers.increment();
+		if (jm != null) {
+			jm.accepted();
 		}
+		return true;
 	}
 
 	/**
-	 * Saves the answer into the answer file
+	 * Counts an answer refused as invalid
+	 * 
+	 * @param jobId the job the answer was posted for
+	 */
+	/**
+	 * Returns true if the job was loaded, even if it was removed since
 	 * 
 	 * @param jobId
-	 * @param task
-	 * @param answer
-	 * @throws IOException 
+	 * @return
 	 */
-	private void saveAnswer(long jobId, int task, String answer) throws IOException {
-		int fileNumber = 1;
-		long size = 0;
-		Path answerFilePath;
-		answer += '\n';
-
-		do {
-			answerFilePath = Paths.get(answersPath + jobId + "_" + fileNumber++);
-			if (Files.exists(answerFilePath, LinkOption.NOFOLLOW_LINKS)) {
-				size = Files.size(answerFilePath);
-			} else {
-				break;
-			}
-		} while (size > maxFileSize);
+	boolean isKnownJob(long jobId) {
+		return jobMetrics.containsKey(jobId);
+	}
 
-		try (BufferedWriter writer = Files.newBufferedWriter(answerFilePath, StandardOpenOption.APPEND,
-		        StandardOpenOption.CREATE); PrintWriter out = new PrintWriter(writer)) {
-			out.println(answer);
-		} catch (IOException e) {
-			System.err.println(e);
+	void answerRejected(long jobId) {
+		JobMetrics jm = jobMetrics.get(jobId);
+		if (jm != null) {
+			jm.rejected();
 		}
 	}
 
+	Metrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Creates a new server
 	 * 
@@ -425,9 +610,22 @@ public class Server {
 		String answersPath = "answers/";
 		long maxFileSize = 0;
 		int comeBackInSeconds = 300;
-
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(Files.newBufferedReader(serverConfigPath));
+		int longPollSeconds = 30;
+		int nbReactors = Runtime.getRuntime().availableProcessors();
+		int maxTasksPerRequest = 1024;
+		int idleTimeoutSeconds = 60;
+		int requestTimeoutSeconds = 30;
+		AsyncLogger.Level logLevel = AsyncLogger.Level.INFO;
+		int logQueueSize = 8192;
+		AsyncLogger.FullPolicy logFullPolicy = AsyncLogger.FullPolicy.DROP;
+		long logMaxFileSize = 10 * 1024 * 1024;
+		long logRotationSeconds = 0;
+		int answersQueueSize = 65536;
+		AnswerWriter.FsyncPolicy fsyncPolicy = AnswerWriter.FsyncPolicy.NONE;
+		long fsyncIntervalMillis = 1000;
+		long bufferPoolBytes = 16 * 1024 * 1024;
+
+		JsonParser jp = JsonCodec.createParser(serverConfigPath);
 		jp.nextToken();
 		while (jp.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName = jp.getCurrentName();
@@ -439,6 +637,21 @@ public class Server {
 			case "LogDirectory":
 				logPath = jp.getText();
 				break;
+			case "LogLevel":
+				logLevel = AsyncLogger.Level.parse(jp.getText());
+				break;
+			case "LogQueueSize":
+				logQueueSize = jp.getIntValue();
+				break;
+			case "LogFullPolicy":
+				logFullPolicy = AsyncLogger.FullPolicy.parse(jp.getText());
+				break;
+			case "LogMaxFileSize":
+				logMaxFileSize = jp.getLongValue();
+				break;
+			case "LogRotationSeconds":
+				logRotationSeconds = jp.getLongValue();
+				break;
 			case "AnswersDirectory":
 				answersPath = jp.getText();
 				break;
@@ -448,100 +661,58 @@ public class Server {
 			case "ComeBackInSeconds":
 				comeBackInSeconds = jp.getIntValue();
 				break;
+			case "LongPollSeconds":
+				longPollSeconds = jp.getIntValue();
+				break;
+			case "Reactors":
+				nbReactors = jp.getIntValue();
+				break;
+			case "IdleTimeoutSeconds":
+				idleTimeoutSeconds = jp.getIntValue();
+				break;
+			case "RequestTimeoutSeconds":
+				requestTimeoutSeconds = jp.getIntValue();
+				break;
+			case "MaxTasksPerRequest":
+				maxTasksPerRequest = jp.getIntValue();
+				break;
+			case "AnswersQueueSize":
+				answersQueueSize = jp.getIntValue();
+				break;
+			case "FsyncPolicy":
+				fsyncPolicy = AnswerWriter.FsyncPolicy.parse(jp.getText());
+				break;
+			case "FsyncIntervalMillis":
+				fsyncIntervalMillis = jp.getLongValue();
+				break;
+			case "BufferPoolBytes":
+				bufferPoolBytes = jp.getLongValue();
+				break;
 			default:
 				System.err.println("Unknown Field");
 			}
 		}
+		jp.close();
 
-		return new Server(port, logPath, answersPath, maxFileSize, comeBackInSeconds);
-
-	}
-
-	/**
-	 * Sends the task to the client
-	 * 
-	 * @param sc
-	 * @throws IOException
-	 */
-	private void sendTask(SocketChannel sc) throws IOException {
-		Job job = jobs.poll();
-		ByteBuffer jsonBuffer;
-		if (job == null) {
-			jsonBuffer = charsetUTF8.encode("\"ComeBackInSeconds\":" + comeBackInSeconds);
-		} else {
-			while (job.isFinished()) {
-				job = jobs.poll();
-			}
-			String json = job.nextTask().toJSON();
-			jsonBuffer = Server.charsetUTF8.encode(json);
-		}
-
-		String header = "HTTP/1.1 200 OK\r\n" + "Content-Type: application/json; charset=utf-8\r\n"
-				+ "Content-Length: " + jsonBuffer.remaining() + "\r\n\r\n";
-		ByteBuffer headerBuffer = Server.charsetUTF8.encode(header);
-
-		while (headerBuffer.hasRemaining()) {
-			sc.write(headerBuffer);
-		}
-
-		while (jsonBuffer.hasRemaining()) {
-			sc.write(jsonBuffer);
-		}
-		if (!job.isFinished()) {
-			jobs.addLast(job);
-		}
-	}
-
-	/**
-	 * Write on the channel of the key
-	 * 
-	 * @param key
-	 * @throws IOException
-	 */
-	private void doWrite(SelectionKey key) throws IOException {
-		Attachment attachment = (Attachment) key.attachment();
-
-		if (attachment.isRequestingTask()) {
-			attachment.setRequestingTask(false);
-			sendTask((SocketChannel) key.channel());
-			key.interestOps(SelectionKey.OP_READ);
-		} else if (attachment.isSendingPost()) {
-			sendCheckCode(key);
-			key.interestOps(SelectionKey.OP_READ);
+		if (nbReactors <= 0) {
+			nbReactors = Runtime.getRuntime().availableProcessors();
 		}
 
-		attachment.setReadingRequest(true);
-	}
+		AsyncLogger logger = new AsyncLogger(logPath, logLevel, logQueueSize, logFullPolicy, logMaxFileSize,
+				logRotationSeconds, System.out);
+		AnswerWriter answerWriter = new AnswerWriter(answersPath, maxFileSize, answersQueueSize, fsyncPolicy,
+				fsyncIntervalMillis, logger);
+		return new Server(port, logger, answerWriter, comeBackInSeconds, longPollSeconds, nbReactors,
+				maxTasksPerRequest, idleTimeoutSeconds, requestTimeoutSeconds, bufferPoolBytes);
 
-	/**
-	 * Sends the check code to the client
-	 * 
-	 * @param key
-	 * @throws IOException
-	 */
-	private void sendCheckCode(SelectionKey key) throws IOException {
-		Attachment attachment = (Attachment) key.attachment();
-		SocketChannel sc = (SocketChannel) key.channel();
-		String answer = attachment.getAnswer();
-		if (answer == null) {
-			throw new IllegalArgumentException("No answer");
-		}
-		if (JsonTools.isJSON(answer)) {
-			sc.write(Server.charsetUTF8.encode(HTTP_1_1_200_OK));
-		} else {
-			sc.write(Server.charsetUTF8.encode(badRequest));
-		}
-
-		attachment.clean(sc);
 	}
 
 	/**
 	 * Close the key
 	 * 
 	 * @param key
-	 * @throws IOException
 	 */
-	private void close(SelectionKey key) throws IOException {
+	static void close(SelectionKey key) {
 		try{
 			key.channel().close();
 			key.cancel();
@@ -0,0 +1,101 @@
+package upem.jarret.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import upem.jarret.job.Job;
+import util.JsonCodec;
+
+/**
+ * Response to GET Task for the tasks of a job, encoded once. Only the task
+ * numbers and the Content-Length change from one task to the next, they are
+ * written as ASCII digits between the pre-encoded parts. The body is the same
+ * JSON as Task.toJSON().
+ */
+class TaskResponse {
+	private static final byte[] HEADER = ascii(
+			"HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=utf-8\r\nContent-Length: ");
+	private static final byte[] END_OF_HEADER = ascii("\r\n\r\n");
+	private static final byte[] TASKS = ascii("\",\"Tasks\":[");
+	private static final byte[] END_OF_TASKS = ascii("]}");
+	private static final byte[] END_OF_TASK = ascii("\"}");
+	/** size of the header with the longest Content-Length */
+	static final int MAX_HEADER_SIZE = HEADER.length + 10 + END_OF_HEADER.length;
+
+	// {"JobId":"...", ... ,"WorkerClassName":"...","Task":"
+	private final byte[] bodyPrefix;
+
+	TaskResponse(Job job) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator jg = JsonCodec.createGenerator(baos);
+		jg.writeStartObject();
+		jg.writeStringField("JobId", job.getJobId());
+		jg.writeStringField("WorkerVersion", job.getWorkerVersion());
+		jg.writeStringField("WorkerURL", job.getWorkerURL());
+		jg.writeStringField("WorkerClassName", job.getWorkerClassName());
+		// the object is left open, the task is appended for each response
+		jg.flush();
+		baos.write(ascii(",\"Task\":\""));
+		bodyPrefix = baos.toByteArray();
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(Server.charsetASCII);
+	}
+
+	/**
+	 * Returns the largest body of a batch of this job
+	 *
+	 * @return
+	 */
+	int maxBodySize() {
+		return bodyPrefix.length + TASKS.length + 3 * 10 + 1 + END_OF_TASKS.length;
+	}
+
+	/**
+	 * Writes the response for the batch of the count tasks starting at task
+	 *
+	 * @param task
+	 * @param count
+	 * @param header cleared buffer of at least MAX_HEADER_SIZE bytes, in read-mode on return
+	 * @param body cleared buffer of at least maxBodySize() bytes, in read-mode on return
+	 */
+	void encode(int task, int count, ByteBuffer header, ByteBuffer body) {
+		body.put(bodyPrefix);
+		putDigits(body, task);
+		if (count > 1) {
+			body.put(TASKS);
+			putDigits(body, task);
+			body.put((byte) ',');
+			putDigits(body, task + count);
+			body.put(END_OF_TASKS);
+		} else {
+			body.put(END_OF_TASK);
+		}
+		body.flip();
+
+		header.put(HEADER);
+		putDigits(header, body.remaining());
+		header.put(END_OF_HEADER);
+		header.flip();
+	}
+
+	/**
+	 * Writes the decimal digits of a non negative int without creating a String
+	 */
+	private static void putDigits(ByteBuffer bb, int value) {
+		int digits = 1;
+		for (int i = value; i >= 10; i /= 10) {
+			digits++;
+		}
+		int position = bb.position();
+		for (int i = position + digits - 1; i >= position; i--) {
+			bb.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		bb.position(position + digits);
+	}
+}
@@ -0,0 +1,8 @@
+package upem.jarret.worker;
+
+@FunctionalInterface
+public interface AnswerSink {
+
+    // Receive the JSON result of task number taskNumber, null if its computation failed
+    public void accept(int taskNumber, String answer);
+}
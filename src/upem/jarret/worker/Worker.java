@@ -5,6 +5,21 @@ public interface Worker {
     // Return a JSON String with the result of computing task number taskNumber
     public String compute(int taskNumber);
 
+    // Give to sink, in order, the results of computing the tasks [start, end[,
+    // null for the tasks whose computation failed. Workers which can share
+    // work between the tasks of a range override it.
+    public default void compute(int start, int end, AnswerSink sink) {
+        for (int taskNumber = start; taskNumber < end; taskNumber++) {
+            String answer;
+            try {
+                answer = compute(taskNumber);
+            } catch (Exception e) {
+                answer = null;
+            }
+            sink.accept(taskNumber, answer);
+        }
+    }
+
     // Return the jobId of the job treated by this worker
     public long getJobId();
 
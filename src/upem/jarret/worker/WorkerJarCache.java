@@ -0,0 +1,395 @@
+package upem.jarret.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of the worker jars in a local directory, shared by the clients
+ * started on the machine. The jars are stored under the SHA-256 of their
+ * content and a reference file maps each (WorkerURL, WorkerVersion) to the
+ * hash of its jar, so a worker is downloaded once for each version. A jar is
+ * checked against its hash before its first load in the process, then a
+ * single class loader serves all the workers of the jar.
+ *
+ * When the jars take more than the size of the cache, the least recently used
+ * ones which are not in use are deleted. A process holds a shared lock on the
+ * lock file of a jar from before the jar is checked or stored until it exits,
+ * and a jar is only deleted under the exclusive lock, so the clients never
+ * delete a jar another one is loading. The lock files are empty and kept.
+ * The shared locks of the JVM are counted by cache and held by a single
+ * channel per file: closing any other channel on the file would release them.
+ *
+ * The workers of different jars are loaded in parallel, the threads asking
+ * for the same one wait for a single download.
+ */
+public class WorkerJarCache {
+	private static final String JAR_SUFFIX = ".jar";
+
+	private final Path directory;
+	private final Path refs;
+	private final Path locks;
+	private final long maxBytes;
+	// WorkerURL and WorkerVersion -> the loading of its class loader, dropped if it failed
+	private final ConcurrentHashMap<String, FutureTask<URLClassLoader>> loading = new ConcurrentHashMap<>();
+	// hash of the jar -> its class loader, only for jars already checked
+	private final ConcurrentHashMap<String, URLClassLoader> loaders = new ConcurrentHashMap<>();
+	// hashes of the jars this cache holds the shared lock of
+	private final HashSet<String> held = new HashSet<>();
+
+	private static class SharedLock {
+		private final FileLock lock;
+		private int holders = 0;
+
+		SharedLock(FileLock lock) {
+			this.lock = lock;
+		}
+	}
+
+	// lock file -> the shared lock of the JVM on it
+	private static final HashMap<Path, SharedLock> SHARED_LOCKS = new HashMap<>();
+
+	/**
+	 * @param directory created if needed
+	 * @param maxBytes size above which jars are evicted
+	 * @throws IOException if the directory cannot be created
+	 */
+	public WorkerJarCache(Path directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.refs = directory.resolve("refs");
+		this.locks = directory.resolve("locks");
+		this.maxBytes = maxBytes;
+		Files.createDirectories(refs);
+		Files.createDirectories(locks);
+	}
+
+	/**
+	 * Creates a worker from its jar, downloading it if it is not in the cache
+	 *
+	 * @param url location of the jar
+	 * @param version version of the worker
+	 * @param className name of the class implementing upem.jarret.worker.Worker
+	 * @return a new instance of className
+	 * @throws IOException if the jar cannot be downloaded or stored
+	 * @throws ReflectiveOperationException if the class className was not found
+	 *             in the jar or the creation of the instance failed
+	 */
+	public Worker getWorker(String url, String version, String className) throws IOException,
+			ReflectiveOperationException {
+		return getWorkerClass(url, version, className).getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Loads the class of a worker from its jar, downloading it if it is not in
+	 * the cache
+	 *
+	 * @param url location of the jar
+	 * @param version version of the worker
+	 * @param className name of the class implementing upem.jarret.worker.Worker
+	 * @return the class, whose instances are created by the caller
+	 * @throws IOException if the jar cannot be downloaded or stored
+	 * @throws ClassNotFoundException if the class className was not found in the jar
+	 * @throws ClassCastException if the class does not implement Worker
+	 */
+	public Class<? extends Worker> getWorkerClass(String url, String version, String className)
+			throws IOException, ClassNotFoundException {
+		String key = url + '\n' + version;
+		FutureTask<URLClassLoader> task = loading.get(key);
+		if (task == null) {
+			FutureTask<URLClassLoader> created = new FutureTask<>(() -> getClassLoader(url, version));
+			task = loading.putIfAbsent(key, created);
+			if (task == null) {
+				task = created;
+				created.run();
+			}
+		}
+		URLClassLoader loader;
+		try {
+			loader = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + url);
+		} catch (ExecutionException e) {
+			// the next call tries again
+			loading.remove(key, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		return Class.forName(className, true, loader).asSubclass(Worker.class);
+	}
+
+	private URLClassLoader getClassLoader(String url, String version) throws IOException {
+		Path ref = refs.resolve(hash(url + '\n' + version));
+		String hash = readRef(ref);
+		if (hash != null) {
+			URLClassLoader loader = loaders.get(hash);
+			if (loader != null) {
+				touch(jar(hash));
+				return loader;
+			}
+			lockShared(hash);
+			if (check(hash)) {
+				touch(jar(hash));
+				return load(hash);
+			}
+			unlockShared(hash);
+		}
+		hash = download(url);
+		write(ref, hash);
+		URLClassLoader loader = load(hash);
+		evict();
+		return loader;
+	}
+
+	private Path jar(String hash) {
+		return directory.resolve(hash + JAR_SUFFIX);
+	}
+
+	private synchronized URLClassLoader load(String hash) throws IOException {
+		URLClassLoader loader = loaders.get(hash);
+		if (loader == null) {
+			URL[] urls = { jar(hash).toUri().toURL() };
+			loader = new URLClassLoader(urls, Thread.currentThread().getContextClassLoader());
+			loaders.put(hash, loader);
+		}
+		return loader;
+	}
+
+	/**
+	 * Tests if the jar is in the cache and its content matches its hash, a
+	 * corrupted jar is deleted
+	 */
+	private boolean check(String hash) throws IOException {
+		Path jar = jar(hash);
+		try (InputStream in = Files.newInputStream(jar)) {
+			if (hash.equals(digest(in, null))) {
+				return true;
+			}
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		Files.deleteIfExists(jar);
+		return false;
+	}
+
+	/**
+	 * Downloads the jar into the cache
+	 *
+	 * @return the hash of the jar
+	 */
+	private String download(String url) throws IOException {
+		Path tmp = Files.createTempFile(directory, "download", ".tmp");
+		try {
+			String hash;
+			try (InputStream in = new URL(url).openStream(); OutputStream out = Files.newOutputStream(tmp)) {
+				hash = digest(in, out);
+			}
+			Path jar = jar(hash);
+			// locked before it is stored, no client can evict it before it is loaded
+			lockShared(hash);
+			try {
+				// another client may be storing the same jar
+				Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				unlockShared(hash);
+				throw e;
+			}
+			return hash;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private Path lockFile(String hash) {
+		return locks.resolve(hash).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Opens the lock file of the jar
+	 */
+	private static FileChannel openLock(Path lockFile) throws IOException {
+		return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Takes the shared lock of the jar, kept until unlockShared or the end of
+	 * the process. It waits while another client is evicting the jar.
+	 */
+	private synchronized void lockShared(String hash) throws IOException {
+		if (held.contains(hash)) {
+			return;
+		}
+		Path lockFile = lockFile(hash);
+		synchronized (SHARED_LOCKS) {
+			SharedLock shared = SHARED_LOCKS.get(lockFile);
+			if (shared == null) {
+				FileChannel channel = openLock(lockFile);
+				try {
+					shared = new SharedLock(channel.lock(0, Long.MAX_VALUE, true));
+				} catch (IOException | RuntimeException e) {
+					channel.close();
+					throw e;
+				}
+				SHARED_LOCKS.put(lockFile, shared);
+			}
+			shared.holders++;
+		}
+		held.add(hash);
+	}
+
+	private synchronized void unlockShared(String hash) throws IOException {
+		if (!held.remove(hash)) {
+			return;
+		}
+		Path lockFile = lockFile(hash);
+		synchronized (SHARED_LOCKS) {
+			SharedLock shared = SHARED_LOCKS.get(lockFile);
+			if (--shared.holders == 0) {
+				SHARED_LOCKS.remove(lockFile);
+				// closing the channel releases the lock
+				shared.lock.channel().close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the jar if no client holds its lock. A jar this JVM holds is
+	 * skipped without opening its lock file.
+	 *
+	 * @return true if the jar was deleted
+	 */
+	private boolean delete(Path jar, String hash) throws IOException {
+		Path lockFile = lockFile(hash);
+		synchronized (SHARED_LOCKS) {
+			if (SHARED_LOCKS.containsKey(lockFile)) {
+				return false;
+			}
+			try (FileChannel channel = openLock(lockFile); FileLock lock = channel.tryLock()) {
+				return lock != null && Files.deleteIfExists(jar);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used jars which are not in use until the
+	 * cache fits in its size
+	 */
+	private void evict() throws IOException {
+		ArrayList<Path> jars = new ArrayList<>();
+		long size = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + JAR_SUFFIX)) {
+			for (Path jar : stream) {
+				jars.add(jar);
+				size += Files.size(jar);
+			}
+		}
+		if (size <= maxBytes) {
+			return;
+		}
+		HashMap<Path, FileTime> lastUses = new HashMap<>();
+		for (Path jar : jars) {
+			lastUses.put(jar, Files.getLastModifiedTime(jar));
+		}
+		jars.sort((a, b) -> lastUses.get(a).compareTo(lastUses.get(b)));
+		for (Path jar : jars) {
+			if (size <= maxBytes) {
+				return;
+			}
+			String name = jar.getFileName().toString();
+			String hash = name.substring(0, name.length() - JAR_SUFFIX.length());
+			long jarSize = Files.size(jar);
+			if (delete(jar, hash)) {
+				size -= jarSize;
+			}
+		}
+	}
+
+	private static void touch(Path jar) throws IOException {
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	private static String readRef(Path ref) throws IOException {
+		try {
+			return new String(Files.readAllBytes(ref), StandardCharsets.US_ASCII).trim();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void write(Path ref, String hash) throws IOException {
+		Path tmp = Files.createTempFile(refs, "ref", ".tmp");
+		try {
+			Files.write(tmp, hash.getBytes(StandardCharsets.US_ASCII));
+			Files.move(tmp, ref, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String hash(String s) {
+		return hex(sha256().digest(s.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Hashes the stream, copying it to out if not null
+	 */
+	private static String digest(InputStream in, OutputStream out) throws IOException {
+		DigestInputStream dis = new DigestInputStream(in, sha256());
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = dis.read(buffer)) != -1) {
+			if (out != null) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return hex(dis.getMessageDigest().digest());
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,378 @@
+package util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger which never touches the disk on the calling thread. The messages are
+ * put in a lock-free ring buffer, a single flusher thread writes them into the
+ * log file which stays open, and rotates it by size or by age.
+ *
+ * When the ring buffer is empty, the flusher parks until the next rotation by
+ * age, or indefinitely, after raising its sleeping flag: the producer which
+ * publishes a message then sees the flag and unparks it.
+ *
+ * With the BLOCK policy, a caller finding the ring buffer full parks until
+ * the flusher frees slots, for at most BLOCKED_PARK_NANOS at a time: a
+ * reactor thread waits for the disk but does not spin.
+ */
+public class AsyncLogger implements Runnable {
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final long BLOCKED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final DateTimeFormatter ROTATION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS")
+			.withZone(ZoneId.systemDefault());
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR;
+
+		/**
+		 * Parses the level as written in the config file
+		 *
+		 * @param level
+		 * @return
+		 */
+		public static Level parse(String level) {
+			return valueOf(level.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * What to do when the ring buffer is full
+	 */
+	public enum FullPolicy {
+		/** the message is lost and counted */
+		DROP,
+		/** the caller parks until the flusher frees slots */
+		BLOCK;
+
+		public static FullPolicy parse(String policy) {
+			return valueOf(policy.trim().toUpperCase());
+		}
+	}
+
+	private final Path logFile;
+	private final Level level;
+	private final FullPolicy fullPolicy;
+	private final long maxFileSize;
+	private final long rotationNanos;
+	private final PrintStream console;
+
+	// ring buffer, one sequence per slot as in a bounded MPSC queue
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final String[] messages;
+	private final Level[] levels;
+	private final long[] times;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+	// callers parked on a full ring buffer, unparked by the flusher
+	private final ConcurrentLinkedQueue<Thread> blocked = new ConcurrentLinkedQueue<>();
+	private final Thread thread = new Thread(this, "logger");
+	private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final StringBuilder line = new StringBuilder();
+	private volatile boolean closed = false;
+	// set by the flusher before it parks on an empty ring buffer
+	private volatile boolean sleeping = false;
+
+	private FileChannel channel;
+	private long size;
+	private long openedAt;
+
+	/**
+	 * @param logDirectory directory of the log file
+	 * @param level messages below this level are ignored
+	 * @param capacity number of messages the ring buffer can hold, rounded up to a power of two
+	 * @param fullPolicy what to do when the ring buffer is full
+	 * @param maxFileSize the file is rotated when it goes past this size, 0 to disable
+	 * @param rotationSeconds the file is rotated when it is older, 0 to disable
+	 * @param console stream where the warnings and errors are echoed, or null
+	 */
+	public AsyncLogger(String logDirectory, Level level, int capacity, FullPolicy fullPolicy, long maxFileSize,
+			long rotationSeconds, PrintStream console) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid log capacity: " + capacity);
+		}
+		this.logFile = Paths.get(logDirectory + "log");
+		this.level = Objects.requireNonNull(level);
+		this.fullPolicy = Objects.requireNonNull(fullPolicy);
+		this.maxFileSize = maxFileSize;
+		this.rotationNanos = TimeUnit.SECONDS.toNanos(rotationSeconds);
+		this.console = console;
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		messages = new String[size];
+		levels = new Level[size];
+		times = new long[size];
+	}
+
+	/**
+	 * Opens the log file and starts the flusher thread
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		open();
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes the pending messages and closes the log file
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(thread);
+		thread.join();
+	}
+
+	/**
+	 * Returns true if the messages of this level are logged, lets the callers
+	 * skip building the message
+	 *
+	 * @param level
+	 * @return
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * Returns the number of messages lost because the ring buffer was full
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	/**
+	 * Puts the message in the ring buffer, never does any I/O
+	 *
+	 * @param level
+	 * @param message
+	 */
+	public void log(Level level, String message) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		long time = System.currentTimeMillis();
+		while (!offer(level, message, time)) {
+			if (fullPolicy == FullPolicy.DROP || closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+			Thread current = Thread.currentThread();
+			blocked.add(current);
+			LockSupport.unpark(thread);
+			// bounded, the slots may have been freed before the caller was queued
+			LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+			blocked.remove(current);
+		}
+	}
+
+	/**
+	 * Claims a slot of the ring buffer
+	 *
+	 * @return false if the ring buffer is full
+	 */
+	private boolean offer(Level level, String message, long time) {
+		long position = tail.get();
+		int index;
+		while (true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+		messages[index] = message;
+		levels[index] = level;
+		times[index] = time;
+		// a volatile write, so the flusher cannot miss the message after raising its flag
+		sequences.set(index, position + 1);
+		if (sleeping) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				if (drain() == 0) {
+					sleep();
+				}
+				rotateIfNeeded();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+		try {
+			while (drain() != 0) {
+				// write everything which was logged before close
+			}
+			channel.close();
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Parks until a message is published, the logger is closed or the file
+	 * has to be rotated by age
+	 */
+	private void sleep() {
+		sleeping = true;
+		// a message published before the flag was raised did not unpark the flusher
+		if (sequences.get((int) head & mask) != head + 1 && !closed) {
+			if (rotationNanos > 0) {
+				LockSupport.parkNanos(this, Math.max(rotationNanos - (System.nanoTime() - openedAt), 1));
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		sleeping = false;
+	}
+
+	/**
+	 * Writes the messages available in the ring buffer
+	 *
+	 * @return the number of messages written
+	 * @throws IOException
+	 */
+	private int drain() throws IOException {
+		int count = 0;
+		while (true) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+			String message = messages[index];
+			Level level = levels[index];
+			long time = times[index];
+			messages[index] = null;
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			count++;
+
+			append(level, message, time);
+			if (console != null && level.compareTo(Level.WARN) >= 0) {
+				console.println(message);
+			}
+		}
+		flush();
+		if (count > 0) {
+			Thread waiter;
+			while ((waiter = blocked.poll()) != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+		return count;
+	}
+
+	private void append(Level level, String message, long time) throws IOException {
+		line.setLength(0);
+		line.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(message).append('\n');
+		CharBuffer chars = CharBuffer.wrap(line);
+		while (true) {
+			CoderResult result = encoder.encode(chars, out, true);
+			if (!result.isOverflow()) {
+				break;
+			}
+			flush();
+		}
+		encoder.reset();
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			size += channel.write(out);
+		}
+		out.clear();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+				StandardOpenOption.CREATE);
+		size = channel.size();
+		openedAt = System.nanoTime();
+	}
+
+	/**
+	 * Renames the current log file with its closing date and opens a new one
+	 *
+	 * @throws IOException
+	 */
+	private void rotateIfNeeded() throws IOException {
+		boolean tooBig = maxFileSize > 0 && size > maxFileSize;
+		boolean tooOld = rotationNanos > 0 && System.nanoTime() - openedAt > rotationNanos;
+		if (!tooBig && !tooOld) {
+			return;
+		}
+		if (size == 0) {
+			openedAt = System.nanoTime();
+			return;
+		}
+		channel.close();
+		Path rotated = logFile.resolveSibling("log." + ROTATION_SUFFIX.format(Instant.now()));
+		Files.move(logFile, rotated);
+		open();
+	}
+}
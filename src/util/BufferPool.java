@@ -0,0 +1,145 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers whose capacities are powers of two. The buffers of a
+ * size are sliced from slabs, a slab is only allocated when no buffer of its
+ * size is free and they are never given back to the GC. When the slabs reach
+ * the limit of the pool, or for buffers larger than the largest size, heap
+ * buffers are allocated instead and forgotten when released.
+ *
+ * The pool is not thread-safe, each thread doing I/O owns its own. The
+ * metrics may be read from any thread.
+ */
+public class BufferPool {
+	private static final int SLAB_SIZE = 64 * 1024;
+
+	private final int minShift;
+	private final int maxShift;
+	private final long maxPooledBytes;
+	private final ArrayDeque<ByteBuffer>[] free;
+
+	private volatile long pooledBytes = 0;
+	private volatile int inUse = 0;
+	private volatile int freeBuffers = 0;
+	private volatile long unpooled = 0;
+
+	/**
+	 * @param minSize smallest capacity, rounded up to a power of two
+	 * @param maxSize largest pooled capacity, rounded up to a power of two
+	 * @param maxPooledBytes the slabs do not take more than this
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(int minSize, int maxSize, long maxPooledBytes) {
+		if (minSize < 1 || maxSize < minSize || maxSize > 1 << 30) {
+			throw new IllegalArgumentException("Invalid buffer sizes: " + minSize + ", " + maxSize);
+		}
+		minShift = shift(minSize);
+		maxShift = shift(maxSize);
+		this.maxPooledBytes = maxPooledBytes;
+		free = new ArrayDeque[maxShift - minShift + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Returns the smallest shift such that size <= 1 << shift
+	 */
+	private static int shift(int size) {
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Borrows a buffer, it has to be released once it is not used anymore
+	 *
+	 * @param capacity
+	 * @return a cleared buffer of at least capacity bytes
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int shift = Math.max(shift(Math.max(capacity, 1)), minShift);
+		if (shift > maxShift) {
+			unpooled++;
+			return ByteBuffer.allocate(capacity);
+		}
+		ArrayDeque<ByteBuffer> buffers = free[shift - minShift];
+		if (buffers.isEmpty() && !allocateSlab(shift, buffers)) {
+			unpooled++;
+			return ByteBuffer.allocate(capacity);
+		}
+		ByteBuffer bb = buffers.pop();
+		freeBuffers--;
+		inUse++;
+		bb.clear();
+		return bb;
+	}
+
+	private boolean allocateSlab(int shift, ArrayDeque<ByteBuffer> buffers) {
+		int size = 1 << shift;
+		int slabSize = Math.max(size, SLAB_SIZE);
+		if (pooledBytes + slabSize > maxPooledBytes) {
+			return false;
+		}
+		ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+		for (int position = 0; position < slabSize; position += size) {
+			slab.limit(position + size).position(position);
+			buffers.push(slab.slice());
+		}
+		pooledBytes += slabSize;
+		freeBuffers += slabSize / size;
+		return true;
+	}
+
+	/**
+	 * Gives back a buffer borrowed with acquire
+	 *
+	 * @param bb
+	 */
+	public void release(ByteBuffer bb) {
+		if (!bb.isDirect()) {
+			return;
+		}
+		free[shift(bb.capacity()) - minShift].push(bb);
+		freeBuffers++;
+		inUse--;
+	}
+
+	/**
+	 * Returns the number of pooled buffers borrowed
+	 *
+	 * @return
+	 */
+	public int getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * Returns the number of pooled buffers available
+	 *
+	 * @return
+	 */
+	public int getFree() {
+		return freeBuffers;
+	}
+
+	/**
+	 * Returns the size of the slabs allocated
+	 *
+	 * @return
+	 */
+	public long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 * Returns the number of heap buffers allocated because the pool was full or
+	 * the capacity too large
+	 *
+	 * @return
+	 */
+	public long getUnpooled() {
+		return unpooled;
+	}
+}
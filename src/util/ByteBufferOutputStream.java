@@ -0,0 +1,119 @@
+package util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputStream writing into a ByteBuffer which grows when needed. It is
+ * reset and reused from one message to the next, so a JsonGenerator writes
+ * the message directly into the buffer sent on the channel.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+	private ByteBuffer buffer;
+
+	/**
+	 * @param capacity initial capacity of the buffer
+	 */
+	public ByteBufferOutputStream(int capacity) {
+		buffer = ByteBuffer.allocate(capacity);
+	}
+
+	private void ensureRemaining(int size) {
+		if (buffer.remaining() >= size) {
+			return;
+		}
+		long needed = (long) buffer.position() + size;
+		if (needed > Integer.MAX_VALUE) {
+			throw new OutOfMemoryError("Message too large");
+		}
+		ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity())));
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureRemaining(1);
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureRemaining(len);
+		buffer.put(b, off, len);
+	}
+
+	public ByteBufferOutputStream writeInt(int value) {
+		ensureRemaining(Integer.BYTES);
+		buffer.putInt(value);
+		return this;
+	}
+
+	public ByteBufferOutputStream writeLong(long value) {
+		ensureRemaining(Long.BYTES);
+		buffer.putLong(value);
+		return this;
+	}
+
+	/**
+	 * Overwrites an int already written, used for lengths known afterwards
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void putInt(int index, int value) {
+		if (index < 0 || index + Integer.BYTES > buffer.position()) {
+			throw new IndexOutOfBoundsException("No int written at " + index);
+		}
+		buffer.putInt(index, value);
+	}
+
+	/**
+	 * Returns the number of bytes written
+	 *
+	 * @return
+	 */
+	public int position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Drops the bytes written after the position
+	 *
+	 * @param position
+	 */
+	public void position(int position) {
+		if (position > buffer.position()) {
+			throw new IllegalArgumentException("Cannot move forward");
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * Drops everything written, the buffer is kept
+	 */
+	public void reset() {
+		buffer.clear();
+	}
+
+	/**
+	 * Returns the bytes written, in read-mode. The buffer is shared with the
+	 * stream and is only valid until the next write.
+	 *
+	 * @return
+	 */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer bb = buffer.duplicate();
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Does nothing, the stream stays usable
+	 */
+	@Override
+	public void close() {
+		// a closed JsonGenerator closes its target
+	}
+}
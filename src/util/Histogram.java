@@ -0,0 +1,120 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. As in an HDR histogram,
+ * each power of two is split into SUB_BUCKETS buckets of the same width, so a
+ * value is known within 1/SUB_BUCKETS of itself from 1ns to 2^MAX_SHIFT ns
+ * (about five hours) with a fixed array of counters. Larger values are counted
+ * in the last bucket.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_SHIFT = 44;
+	private static final int BUCKETS = (MAX_SHIFT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value);
+		if (shift >= MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (shift - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (shift - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the smallest value counted in the bucket
+	 */
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (shift - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Counts a duration
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		// counted before its bucket, so a count read after the buckets covers them
+		count.increment();
+		sum.add(nanos);
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the durations counted, in nanoseconds
+	 *
+	 * @return
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the number of durations counted below 2^shift ns
+	 *
+	 * @param shift
+	 * @return
+	 */
+	public long countBelow(int shift) {
+		int end;
+		if (shift >= MAX_SHIFT) {
+			end = BUCKETS - 1;
+		} else if (shift <= SUB_BUCKET_BITS) {
+			end = 1 << Math.max(shift, 0);
+		} else {
+			end = bucket(1L << shift);
+		}
+		long below = 0;
+		for (int i = 0; i < end; i++) {
+			below += counts.get(i);
+		}
+		return below;
+	}
+
+	/**
+	 * Returns an estimate of the quantile, the lower bound of the bucket it
+	 * falls in
+	 *
+	 * @param quantile between 0 and 1
+	 * @return the duration in nanoseconds, 0 if nothing was counted
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] != 0) {
+				return lowerBound(i);
+			}
+		}
+		return lowerBound(BUCKETS - 1);
+	}
+}
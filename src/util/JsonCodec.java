@@ -0,0 +1,90 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Creates all the JSON parsers and generators from a single JsonFactory. The
+ * factory is thread-safe, sharing it keeps the symbol table of the field names
+ * and the buffers Jackson recycles for each thread from one message to the
+ * next instead of building them again each time.
+ */
+public class JsonCodec {
+	private static final JsonFactory factory = new JsonFactory();
+
+	private JsonCodec() {
+	}
+
+	/**
+	 * Returns the shared factory
+	 *
+	 * @return
+	 */
+	public static JsonFactory getFactory() {
+		return factory;
+	}
+
+	public static JsonParser createParser(String json) throws IOException {
+		return factory.createParser(json);
+	}
+
+	public static JsonParser createParser(byte[] json, int offset, int length) throws IOException {
+		return factory.createParser(json, offset, length);
+	}
+
+	/**
+	 * Creates a parser of the remaining bytes of the buffer, without moving
+	 * its position
+	 *
+	 * @param json
+	 * @return
+	 * @throws IOException
+	 */
+	public static JsonParser createParser(ByteBuffer json) throws IOException {
+		if (json.hasArray()) {
+			return factory.createParser(json.array(), json.arrayOffset() + json.position(), json.remaining());
+		}
+		byte[] bytes = new byte[json.remaining()];
+		json.duplicate().get(bytes);
+		return factory.createParser(bytes);
+	}
+
+	public static JsonParser createParser(Reader reader) throws IOException {
+		return factory.createParser(reader);
+	}
+
+	/**
+	 * Creates a parser of a file, closing the parser closes the file
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static JsonParser createParser(Path path) throws IOException {
+		return factory.createParser(Files.newBufferedReader(path));
+	}
+
+	/**
+	 * Creates a generator writing UTF-8
+	 *
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+		return factory.createGenerator(out);
+	}
+
+	public static JsonGenerator createGenerator(Writer writer) throws IOException {
+		return factory.createGenerator(writer);
+	}
+}
@@ -2,7 +2,6 @@ package util;
 
 import java.io.IOException;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -17,12 +16,14 @@ public class JsonTools {
 	 * @throws IOException if something went wrong
 	 */
 	public static boolean isJSON(String string) throws IOException {
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(string);
-		try {
+		try (JsonParser jp = JsonCodec.createParser(string)) {
 			jp.nextToken();
-			while(jp.nextToken() != JsonToken.END_OBJECT) {
-				jp.nextToken();
+			JsonToken token;
+			while ((token = jp.nextToken()) != JsonToken.END_OBJECT) {
+				if (token == null || jp.nextToken() == null) {
+					// the input ended before the object
+					return false;
+				}
 			}
 		} catch (JsonParseException jpe) {
 			return false;
@@ -39,16 +40,16 @@ public class JsonTools {
 	 * @throws IOException if something went wrong
 	 */
 	public static boolean isNested(String json) throws JsonParseException, IOException {
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(json);
-		jp.nextToken();
-		
-		while ((jp.nextToken()) != JsonToken.END_OBJECT) {
-			if ((jp.nextToken()) == JsonToken.START_OBJECT) {
-				return true;
+		try (JsonParser jp = JsonCodec.createParser(json)) {
+			jp.nextToken();
+			JsonToken token;
+			while ((token = jp.nextToken()) != JsonToken.END_OBJECT && token != null) {
+				if ((jp.nextToken()) == JsonToken.START_OBJECT) {
+					return true;
+				}
 			}
+			return false;
 		}
-		return false;
 	}
 
 }
@@ -0,0 +1,202 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of a process, written in the Prometheus text
+ * format. Registering takes a lock, the counters and histograms returned are
+ * lock-free and are kept by the code which updates them.
+ */
+public class Metrics {
+	// the histograms are written with a bucket per power of two from 2^10 ns to 2^40 ns
+	private static final int MIN_SHIFT = 10;
+	private static final int MAX_SHIFT = 40;
+
+	private static class Family {
+		private final String type;
+		private final String help;
+		// labels -> metric, in registration order
+		private final LinkedHashMap<String, Object> metrics = new LinkedHashMap<>();
+
+		Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	private final LinkedHashMap<String, Family> families = new LinkedHashMap<>();
+
+	/**
+	 * Returns the metric of the family with these labels, registering metric
+	 * if there is none
+	 */
+	private synchronized Object register(String name, String type, String help, String labels, Object metric) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(type, help);
+			families.put(name, family);
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type);
+		}
+		Object registered = family.metrics.get(labels);
+		if (registered == null) {
+			family.metrics.put(labels, metric);
+			registered = metric;
+		}
+		return registered;
+	}
+
+	/**
+	 * Returns the counter, created the first time
+	 *
+	 * @param name
+	 * @param help
+	 * @return
+	 */
+	public LongAdder counter(String name, String help) {
+		return (LongAdder) register(name, "counter", help, "", new LongAdder());
+	}
+
+	/**
+	 * Returns the counter with the label, created the first time
+	 *
+	 * @param name
+	 * @param help
+	 * @param label
+	 * @param value
+	 * @return
+	 */
+	public LongAdder counter(String name, String help, String label, String value) {
+		return (LongAdder) register(name, "counter", help, labels(label, value), new LongAdder());
+	}
+
+	/**
+	 * Returns the histogram of durations, created the first time. It is written
+	 * in seconds.
+	 *
+	 * @param name
+	 * @param help
+	 * @return
+	 */
+	public Histogram histogram(String name, String help) {
+		return (Histogram) register(name, "histogram", help, "", new Histogram());
+	}
+
+	/**
+	 * Returns the histogram of durations with the label, created the first
+	 * time
+	 *
+	 * @param name
+	 * @param help
+	 * @param label
+	 * @param value
+	 * @return
+	 */
+	public Histogram histogram(String name, String help, String label, String value) {
+		return (Histogram) register(name, "histogram", help, labels(label, value), new Histogram());
+	}
+
+	/**
+	 * Registers a value read when the metrics are written
+	 *
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		register(name, "gauge", help, "", value);
+	}
+
+	/**
+	 * Removes the metrics of a family which have the label
+	 *
+	 * @param name
+	 * @param label
+	 * @param value
+	 */
+	public synchronized void remove(String name, String label, String value) {
+		Family family = families.get(name);
+		if (family != null) {
+			family.metrics.remove(labels(label, value));
+		}
+	}
+
+	private static String labels(String label, String value) {
+		StringBuilder sb = new StringBuilder(label).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Writes all the metrics in the Prometheus text format
+	 *
+	 * @param sb
+	 */
+	public void write(StringBuilder sb) {
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<Family> snapshot = new ArrayList<>();
+		ArrayList<ArrayList<Object>> metrics = new ArrayList<>();
+		ArrayList<ArrayList<String>> labels = new ArrayList<>();
+		synchronized (this) {
+			families.forEach((name, family) -> {
+				names.add(name);
+				snapshot.add(family);
+				metrics.add(new ArrayList<>(family.metrics.values()));
+				labels.add(new ArrayList<>(family.metrics.keySet()));
+			});
+		}
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			Family family = snapshot.get(i);
+			sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (int j = 0; j < metrics.get(i).size(); j++) {
+				write(sb, name, labels.get(i).get(j), metrics.get(i).get(j));
+			}
+		}
+	}
+
+	private static void write(StringBuilder sb, String name, String labels, Object metric) {
+		if (metric instanceof LongAdder) {
+			sample(sb, name, labels, ((LongAdder) metric).sum());
+		} else if (metric instanceof LongSupplier) {
+			sample(sb, name, labels, ((LongSupplier) metric).getAsLong());
+		} else {
+			Histogram histogram = (Histogram) metric;
+			String separator = labels.isEmpty() ? "" : labels + ",";
+			for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+				sb.append(name).append("_bucket{").append(separator).append("le=\"")
+						.append((double) (1L << shift) / 1e9).append("\"} ").append(histogram.countBelow(shift))
+						.append('\n');
+			}
+			long count = histogram.getCount();
+			sb.append(name).append("_bucket{").append(separator).append("le=\"+Inf\"} ").append(count).append('\n');
+			sb.append(name).append("_sum");
+			if (!labels.isEmpty()) {
+				sb.append('{').append(labels).append('}');
+			}
+			sb.append(' ').append(histogram.getSum() / 1e9).append('\n');
+			sample(sb, name + "_count", labels, count);
+		}
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if (!labels.isEmpty()) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+}
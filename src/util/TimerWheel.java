@@ -0,0 +1,279 @@
+package util;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel, as in the timers of the Linux kernel. Time is cut
+ * in ticks and each level is a ring of SLOTS lists of timers: the first level
+ * has a slot per tick, each next level a slot per turn of the level below.
+ * When the first level wraps, the current slot of the level above is cascaded
+ * down. Scheduling and cancelling are O(1), the timers are intrusive nodes
+ * reused by their owner so a wheel holding millions of them makes no garbage.
+ *
+ * The wheel is not thread-safe, it is meant to be ticked by the thread of a
+ * selector loop.
+ */
+public class TimerWheel {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	// timers further away are kept in the last level and cascaded again until they are due
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	private static final int UNSCHEDULED = -1;
+	private static final int FIRING = -2;
+
+	/**
+	 * A timer of the wheel, scheduled again and again by its owner
+	 */
+	public static final class Timer {
+		private final Object owner;
+		private Timer prev;
+		private Timer next;
+		private long deadline;
+		private long deadlineTick;
+		private int level = UNSCHEDULED;
+		private int slot;
+
+		/**
+		 * @param owner what the timer is for, given back when it expires
+		 */
+		public Timer(Object owner) {
+			this.owner = owner;
+		}
+
+		public Object getOwner() {
+			return owner;
+		}
+
+		/**
+		 * Returns the value of System.nanoTime() the timer is scheduled at
+		 *
+		 * @return
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isScheduled() {
+			return level >= 0;
+		}
+	}
+
+	private final long tickNanos;
+	private final long origin;
+	private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+	// a bit per slot which is not empty
+	private final long[] occupied = new long[LEVELS];
+	// the next tick to process
+	private long currentTick = 0;
+	private int size = 0;
+	private Timer[] firing = new Timer[16];
+
+	/**
+	 * @param tickNanos duration of a tick, the precision of the timers
+	 * @param now value of System.nanoTime()
+	 */
+	public TimerWheel(long tickNanos, long now) {
+		if (tickNanos <= 0) {
+			throw new IllegalArgumentException("The tick must be positive");
+		}
+		this.tickNanos = tickNanos;
+		this.origin = now;
+	}
+
+	/**
+	 * Returns the number of timers scheduled
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules the timer, it expires on the first tick after the deadline. A
+	 * timer already scheduled is moved.
+	 *
+	 * @param timer
+	 * @param deadline value of System.nanoTime()
+	 */
+	public void schedule(Timer timer, long deadline) {
+		cancel(timer);
+		long elapsed = deadline - origin;
+		// rounded up so the timer never expires before its deadline
+		long tick = elapsed <= 0 ? 0 : (elapsed - 1) / tickNanos + 1;
+		timer.deadline = deadline;
+		timer.deadlineTick = Math.max(tick, currentTick);
+		insert(timer);
+		size++;
+	}
+
+	private void insert(Timer timer) {
+		long delta = Math.min(timer.deadlineTick - currentTick, MAX_DELTA);
+		long tick = currentTick + delta;
+		int level = 0;
+		while (delta >= SLOTS) {
+			delta >>>= SLOT_BITS;
+			level++;
+		}
+		int slot = (int) (tick >>> (SLOT_BITS * level)) & MASK;
+		Timer head = slots[level][slot];
+		timer.prev = null;
+		timer.next = head;
+		if (head != null) {
+			head.prev = timer;
+		}
+		slots[level][slot] = timer;
+		occupied[level] |= 1L << slot;
+		timer.level = level;
+		timer.slot = slot;
+	}
+
+	/**
+	 * Cancels the timer if it is scheduled
+	 *
+	 * @param timer
+	 */
+	public void cancel(Timer timer) {
+		if (timer.level == FIRING) {
+			// it is in the list of the timers expiring, which skips it
+			timer.level = UNSCHEDULED;
+			size--;
+			return;
+		}
+		if (timer.level == UNSCHEDULED) {
+			return;
+		}
+		unlink(timer);
+		timer.level = UNSCHEDULED;
+		size--;
+	}
+
+	private void unlink(Timer timer) {
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			slots[timer.level][timer.slot] = timer.next;
+			if (timer.next == null) {
+				occupied[timer.level] &= ~(1L << timer.slot);
+			}
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.prev = null;
+		timer.next = null;
+	}
+
+	/**
+	 * Detaches the list of a slot
+	 */
+	private Timer takeSlot(int level, int slot) {
+		Timer head = slots[level][slot];
+		slots[level][slot] = null;
+		occupied[level] &= ~(1L << slot);
+		return head;
+	}
+
+	/**
+	 * Moves down the timers of the current slot of the level, and of the
+	 * levels above when this one wraps too
+	 */
+	private void cascade(int level) {
+		int slot = (int) (currentTick >>> (SLOT_BITS * level)) & MASK;
+		if (slot == 0 && level + 1 < LEVELS) {
+			cascade(level + 1);
+		}
+		Timer timer = takeSlot(level, slot);
+		while (timer != null) {
+			Timer next = timer.next;
+			insert(timer);
+			timer = next;
+		}
+	}
+
+	/**
+	 * Expires the timers whose tick has come. The consumer may schedule or
+	 * cancel any timer.
+	 *
+	 * @param now value of System.nanoTime()
+	 * @param expired called with each timer expiring, which is not scheduled
+	 *            anymore
+	 */
+	public void advance(long now, Consumer<Timer> expired) {
+		long nowTick = (now - origin) / tickNanos;
+		while (currentTick <= nowTick) {
+			if (size == 0) {
+				currentTick = nowTick + 1;
+				return;
+			}
+			int slot = (int) currentTick & MASK;
+			if (slot == 0) {
+				cascade(1);
+			}
+			if (occupied[0] == 0) {
+				// nothing to do before the next cascade
+				currentTick = Math.min(nowTick + 1, (currentTick | MASK) + 1);
+				continue;
+			}
+			Timer timer = takeSlot(0, slot);
+			currentTick++;
+			// the consumer may move the timers of the list, so it is copied first
+			int count = 0;
+			while (timer != null) {
+				if (count == firing.length) {
+					Timer[] tmp = new Timer[count * 2];
+					System.arraycopy(firing, 0, tmp, 0, count);
+					firing = tmp;
+				}
+				firing[count++] = timer;
+				Timer next = timer.next;
+				timer.prev = null;
+				timer.next = null;
+				timer.level = FIRING;
+				timer = next;
+			}
+			for (int i = 0; i < count; i++) {
+				timer = firing[i];
+				firing[i] = null;
+				if (timer.level == FIRING) {
+					timer.level = UNSCHEDULED;
+					size--;
+					expired.accept(timer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns how long a selector may sleep before the wheel has work to do:
+	 * a timer to expire or a slot to cascade. It is never later than the next
+	 * expiry.
+	 *
+	 * @param now value of System.nanoTime()
+	 * @return the time in nanoseconds, -1 if no timer is scheduled
+	 */
+	public long nanosToNextEvent(long now) {
+		if (size == 0) {
+			return -1;
+		}
+		long next = Long.MAX_VALUE;
+		for (int level = 0; level < LEVELS; level++) {
+			if (occupied[level] == 0) {
+				continue;
+			}
+			int shift = SLOT_BITS * level;
+			long block = currentTick >>> shift;
+			// the current slot of an upper level was already cascaded unless its first tick is still to come
+			if (level > 0 && (currentTick & ((1L << shift) - 1)) != 0) {
+				block++;
+			}
+			int start = (int) block & MASK;
+			long offset = Long.numberOfTrailingZeros(Long.rotateRight(occupied[level], start));
+			next = Math.min(next, (block + offset) << shift);
+		}
+		return Math.max(0, origin + next * tickNanos - now);
+	}
+}